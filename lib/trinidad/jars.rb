@@ -3,7 +3,7 @@ load File.expand_path('../../trinidad-libs/tomcat-core.jar', File.dirname(__FILE
 load File.expand_path('../../trinidad-libs/trinidad-rb.jar', File.dirname(__FILE__))
 
 module Trinidad
-  TRINIDAD_JARS_VERSION = '1.5.1'
+  TRINIDAD_JARS_VERSION = '1.6.0'
   TOMCAT_VERSION = '7.0.64' unless const_defined?(:TOMCAT_VERSION)
 
   ( Tomcat = Java::RbTrinidad::Jerry ).module_eval do
@@ -79,6 +79,7 @@ module Trinidad
             logger.debug "Old context for [#{@old_context.path}] is already destroyed"
             @old_context.work_dir = nil
           else
+            take_over_sessions(new_context)
             logger.debug "Stopping the old context for [#{@old_context.path}]"
             @old_context.stop
             @old_context.work_dir = nil # make sure it's not deleted
@@ -99,6 +100,17 @@ module Trinidad
 
         private
 
+        # hand (live) sessions over without a persist/load round-trip
+        def take_over_sessions(new_context)
+          manager = new_context.manager
+          return unless manager.is_a?(Java::RbTrinidadContext::DefaultManager)
+          return unless old_manager = @old_context.manager
+          count = manager.takeover(old_manager)
+          logger.debug "Took over #{count} session(s) for [#{@old_context.path}]"
+        rescue java.lang.Exception => e
+          logger.error "Failed taking over sessions for [#{@old_context.path}]", e
+        end
+
         def logger
           Trinidad::Lifecycle::Host::RollingReload.logger
         end
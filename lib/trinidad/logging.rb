@@ -13,6 +13,15 @@ module Trinidad
     MessageFormatter = Java::RbTrinidadLogging::MessageFormatter
     # @private
     DefaultFormatter = Java::RbTrinidadLogging::DefaultFormatter
+    # Formats records as JSON (one object per line).
+    # @private
+    JsonFormatter = Java::RbTrinidadLogging::JsonFormatter
+    # Renders (thrown) stack traces.
+    # @private
+    StackTraceFormatter = Java::RbTrinidadLogging::StackTraceFormatter
+    # Web application context (resolved from the logger name).
+    # @private
+    LoggingContext = Java::RbTrinidadLogging::LoggingContext
 
     @@configured = nil
 
@@ -88,7 +97,12 @@ module Trinidad
 
       logging = web_app.logging
 
-      logger.level = parse_log_level(logging[:level], nil)
+      level = parse_log_level(logging[:level], nil)
+      if logging_context = LoggingContext.forLogger(logger_name)
+        logging_context.level = level # sets the logger level as well
+      else
+        logger.level = level
+      end
       # delegate to root (console) output only in development mode :
       logger.use_parent_handlers = logging[:use_parent_handlers]
       # logging:
@@ -96,18 +110,63 @@ module Trinidad
       #    dir: log # [RAILS_ROOT]/log
       #    prefix: production
       #    suffix: .log
+      #    async: true # write on a separate thread
+      #    queue_size: 8192 # max records waiting to be written (async only)
+      #    overflow: drop_oldest # when queue is full: block/drop_oldest/drop
+      #    writer: channel # stream (default), channel or mapped
+      #    map_size: 4194304 # mapped (chunk) region size in bytes
+      #    force_interval: 1000 # millis, sync with the storage device on flush
+      #    max_size: 104857600 # bytes, rotate once the file gets this big
+      #    compress: true # gzip rotated files (in the background)
+      #    max_history: 30 # number of rotated files to keep
       if file = logging[:file]
         prefix, suffix = file[:prefix], file[:suffix] # {prefix}{date}{suffix}
         file_handler = FileHandler.new(file[:dir] || file[:directory], prefix, suffix)
         file_handler.rotatable = file.key?(:rotatable) ? file[:rotatable] : file[:rotate]
         file_handler.buffer_size = file[:buffer_size] if file[:buffer_size]
+        file_handler.max_file_size = file[:max_size] if file[:max_size]
+        file_handler.compress = file[:compress] if file.key?(:compress)
+        file_handler.max_history = file[:max_history] if file[:max_history]
+        if writer = file[:writer]
+          file_handler.writer_type = writer.to_s
+          file_handler.map_size = file[:map_size] if file[:map_size]
+          file_handler.flush_interval = file[:flush_interval] if file[:flush_interval]
+          file_handler.force_interval = file[:force_interval] if file[:force_interval]
+        end
+        if file[:async]
+          file_handler.queue_size = file[:queue_size] if file[:queue_size]
+          if overflow = file[:overflow]
+            overflow = overflow.to_s.upcase.tr('-', '_')
+            file_handler.overflow_policy = FileHandler::OverflowPolicy.valueOf(overflow)
+          end
+          file_handler.async = true
+        end
         format = file.key?(:format) ? file[:format] : logging[:format]
         file_handler.formatter = web_app_formatter(format) # nil uses default
+        # logging:
+        #   stack_trace:
+        #     max_frames: 50 # frames printed per (cause) exception
+        #     fold_frames: true # fold JRuby interpreter (and reflection) frames
+        #     repeat_window: 10000 # millis, print repeated traces as one line
+        if stack_trace = logging[:stack_trace]
+          file_handler.formatter.stack_trace_formatter = stack_trace_formatter(stack_trace)
+        end
         logger.add_handler(file_handler)
       end
       logger
     end
 
+    # Changes the log level of a (configured) web application at runtime
+    # e.g. `Trinidad::Logging.set_web_app_level('/foo', :debug)`, the host
+    # name is only needed if the same context path is deployed on many hosts
+    # @return false if no such web application context is known
+    def self.set_web_app_level(context_name, level, host_name = nil)
+      host_name = host_name.to_s if host_name
+      context = LoggingContext.forName(host_name, context_name.to_s)
+      return false unless context
+      context.level = parse_log_level(level, nil); true
+    end
+
     protected
 
     def self.console_formatter
@@ -115,10 +174,21 @@ module Trinidad
     end
 
     def self.web_app_formatter(format = nil)
+      # logging:
+      #   format: json # one JSON object per line
+      return JsonFormatter.new if format && format.to_s.downcase == 'json'
       # format used by Rails "2012-06-13 16:42:21 +0200"
       DefaultFormatter.new(format.nil? ? 'yyyy-MM-dd HH:mm:ss Z' : format)
     end
 
+    def self.stack_trace_formatter(options)
+      formatter = StackTraceFormatter.new
+      formatter.max_frames = options[:max_frames] if options[:max_frames]
+      formatter.fold_frames = !!options[:fold_frames] if options.key?(:fold_frames)
+      formatter.repeat_window = options[:repeat_window] if options[:repeat_window]
+      formatter
+    end
+
     private
 
     def self.parse_log_level(log_level, default = nil)
@@ -78,6 +78,7 @@ module Trinidad
       tomcat.hostname = address || 'localhost'
       tomcat.server.address = address || nil unless address.nil?
       tomcat.port = config[:port].to_i if config.key?(:port)
+      tomcat.latency_stats = !! config[:latency_stats] if config.key?(:latency_stats)
 
       set_tomcat_class_loader(tomcat)
 
@@ -355,7 +356,7 @@ module Trinidad
       hosts.each do |app_base, host_config|
         next if app_base == :default # @see #default_host
         if host = find_host(app_base, host_config, tomcat)
-          setup_host(app_base, host_config, host)
+          setup_host(app_base, host_config, host, tomcat)
         else
           create_host(app_base, host_config, tomcat)
         end
@@ -396,12 +397,12 @@ module Trinidad
       host = Tomcat::StandardHost.new
       host.appBase = nil # reset default app_base
       host.deployXML = false # disabled by default
-      setup_host(app_base, host_config, host)
+      setup_host(app_base, host_config, host, tomcat)
       tomcat.engine.add_child host if tomcat
       host
     end
 
-    def setup_host(app_base, host_config, host)
+    def setup_host(app_base, host_config, host, tomcat = @tomcat)
       if host_config.is_a?(Array)
         name = host_config.shift
         host_config = { :name => name, :aliases => host_config }
@@ -422,6 +423,8 @@ module Trinidad
             next if (aliaz = aliaz.to_s) == host.name
             host.add_alias(aliaz) unless aliases.include?(aliaz)
           end if host_config[:aliases]
+        when :access_log
+          add_access_log(host, value, tomcat)
         else
           value = value.to_s if value.is_a?(Symbol)
           host.send("#{name}=", value) # e.g. host.name = value
@@ -429,6 +432,19 @@ module Trinidad
       end
     end
 
+    # Logs (all) host requests using a (low overhead) async access log valve.
+    # Options are valve properties e.g. `:format => 'json', :capacity => 16384`
+    def add_access_log(host, options = true, tomcat = @tomcat)
+      return unless options
+      options = {} if options == true
+      valve = tomcat.add_access_log(host)
+      options.each do |name, value|
+        value = value.to_s if value.is_a?(Symbol)
+        valve.send("#{name}=", value) # e.g. valve.prefix = 'access.'
+      end
+      valve
+    end
+
     def set_system_properties(system = Java::JavaLang::System)
       system.set_property("org.apache.catalina.startup.EXIT_ON_INIT_FAILURE", 'true')
     end
@@ -460,7 +476,13 @@ module Trinidad
       if host_config.is_a?(String)
         host.name = host_config
       elsif host_config
-        host_config.each { |name, value| host.send("#{name}=", value) }
+        host_config.each do |name, value|
+          if name.to_sym == :access_log
+            add_access_log(host, value, tomcat)
+          else
+            host.send("#{name}=", value)
+          end
+        end
       end
       host
     end
@@ -181,6 +181,13 @@ module Trinidad
         add_context_param 'jruby.compat.version', compat_version
       end
       add_context_param 'public.root', public_root
+      add_context_param 'public.asset_cache_size', asset_cache_size
+      add_context_param 'public.asset_cache_object_max_size', asset_cache_object_max_size
+      add_context_param 'public.sendfile_size', sendfile_size
+      add_context_param 'public.asset_index', asset_index
+      add_context_param 'public.negative_lookup', negative_lookup if asset_index
+      add_context_param 'public.immutable_assets', immutable_assets
+      add_context_param 'public.warm_up', warm_up
       add_context_param 'jruby.rack.layout_class', layout_class
       # JRuby::Rack::ErrorApp got a bit smarter so use it, TODO maybe override ?
       add_context_param 'jruby.rack.error', false # do not start error app on errors
@@ -196,7 +203,27 @@ module Trinidad
     end
 
     # TODO: internal API - should be configurable/adjustable with context.yml !
-    def context_manager; Java::RbTrinidadContext::DefaultManager.new end
+    def context_manager
+      config = session_manager_config
+      manager = if config[:shards] || config['shards'] # partitioned sessions
+        Java::RbTrinidadContext::ShardedManager.new
+      else
+        Java::RbTrinidadContext::DefaultManager.new
+      end
+      config.each do |name, value|
+        value = value.to_s if value.is_a?(Symbol)
+        manager.send("#{name}=", value) # e.g. manager.warm_up = true
+      end
+      manager
+    end
+
+    # (default) session manager properties e.g.
+    # session_manager:
+    #   warm_up: true
+    #   shards: 8 # uses a sharded manager
+    def session_manager_config
+      @session_manager_config ||= ( self[:session_manager] || {} )
+    end
 
     def logging
       @logging ||= begin
@@ -283,6 +310,55 @@ module Trinidad
       self[:cache_ttl] || public_config[:cache_ttl]
     end
 
+    # The (in-memory) asset cache size in kB, assets are served (along with a
+    # gzip-ed variant) from memory by the DefaultServlet, disabled by default
+    def asset_cache_size # :public => { :asset_cache_size => ... }
+      self[:asset_cache_size] || public_config[:asset_cache_size]
+    end
+
+    # The max size for a cached asset in kB
+    def asset_cache_object_max_size # :public => { :asset_cache_object_max_size => ... }
+      self[:asset_cache_object_max_size] || public_config[:asset_cache_object_max_size]
+    end
+
+    # Files (in kB) larger than this are served using sendfile (zero-copy)
+    # if the connector supports it (e.g. NIO), Tomcat's default is 48 kB
+    def sendfile_size # :public => { :sendfile_size => ... }
+      self[:sendfile_size] || public_config[:sendfile_size]
+    end
+
+    # Index public files (with strong ETags) to answer conditional requests,
+    # true or the re-scan interval in millis (true re-scans every 5 seconds)
+    def asset_index # :public => { :asset_index => ... }
+      index = self[:asset_index]
+      index = public_config[:asset_index] if index.nil?
+      index || nil
+    end
+
+    # With an asset index, paths not indexed are responded with a 404 without
+    # looking up the resource - a new file might not be served until re-scan
+    def negative_lookup # :public => { :negative_lookup => ... }
+      lookup = self[:negative_lookup]
+      lookup = public_config[:negative_lookup] if lookup.nil?
+      lookup || nil
+    end
+
+    # Serve fingerprinted assets e.g. /assets/application-[digest].js with
+    # far-future (immutable) caching headers, true (for "/assets") or a path
+    def immutable_assets # :public => { :immutable_assets => ... }
+      assets = self[:immutable_assets]
+      assets = public_config[:immutable_assets] if assets.nil?
+      assets || nil
+    end
+
+    # Pre-load public files on start (from the assets manifest or the smallest
+    # public files), true or the number of files (true pre-loads 100)
+    def warm_up # :public => { :warm_up => ... }
+      warm_up = self[:warm_up]
+      warm_up = public_config[:warm_up] if warm_up.nil?
+      warm_up || nil
+    end
+
     def define_lifecycle
       Lifecycle::WebApp::Default.new(self)
     end
@@ -0,0 +1,250 @@
+require File.expand_path('../../spec_helper', File.dirname(__FILE__))
+require 'tmpdir'
+
+describe Java::RbTrinidadContext::DefaultManager do
+
+  let(:tomcat) { org.apache.catalina.startup.Tomcat.new }
+  let(:tmp_dir) { Dir.mktmpdir('trinidad-sessions') }
+  let(:manager) do
+    manager = Java::RbTrinidadContext::DefaultManager.new
+    tomcat.addContext('/foo', tmp_dir).manager = manager
+    manager
+  end
+
+  after { FileUtils.rm_rf tmp_dir }
+
+  context "binary snapshot" do
+
+    let(:snapshot) { File.join(tmp_dir, 'SESSIONS.ser') }
+
+    before do
+      manager.pathname = snapshot
+      manager.binary_snapshot = true
+    end
+
+    def create_session(i = 0)
+      session = manager.create_session(nil).session
+      session.set_attribute 'string', "str-#{i}-\u00e9"
+      session.set_attribute 'integer', java.lang.Integer.new(i)
+      session.set_attribute 'long', 42
+      session.set_attribute 'boolean', true
+      session.set_attribute 'double', 4.2
+      session.set_attribute 'bytes', [ 1, 2, 3 ].to_java(:byte)
+      map = java.util.HashMap.new; map.put 'i', i
+      session.set_attribute 'map', map
+      session.set_attribute 'object', java.lang.Object.new
+      session.id
+    end
+
+    def expect_restored(id, i = 0)
+      session = manager.find_session(id)
+      expect( session ).to be_a Java::RbTrinidadContext::DefaultSession
+      session = session.session
+      expect( session.get_attribute('string') ).to eql "str-#{i}-\u00e9"
+      expect( session.get_attribute('integer') ).to eql i
+      expect( session.get_attribute('long') ).to eql 42
+      expect( session.get_attribute('boolean') ).to be true
+      expect( session.get_attribute('double') ).to eql 4.2
+      expect( session.get_attribute('bytes').to_a ).to eql [ 1, 2, 3 ]
+      expect( session.get_attribute('map').to_hash ).to eql 'i' => i
+    end
+
+    def snapshot_magic
+      File.open(snapshot, 'rb') { |file| file.read(4) }
+    end
+
+    it "unloads and loads (typed) attributes" do
+      id = create_session
+      manager.unload
+      expect( manager.active_sessions ).to eql 0
+      expect( snapshot_magic ).to eql 'TRSS'
+
+      manager.load
+      expect( manager.active_sessions ).to eql 1
+      expect( File.exist?(snapshot) ).to be false
+      expect_restored id
+    end
+
+    it "drops non-serializable attributes" do
+      id = create_session
+      manager.unload; manager.load
+      session = manager.find_session(id).session
+      expect( session.get_attribute('object') ).to be nil
+      expect( session.get_attribute_names.to_a ).to_not include 'object'
+    end
+
+    it "unloads and loads a compressed snapshot" do
+      manager.snapshot_compress = true
+      id = create_session
+      manager.unload
+      expect( snapshot_magic ).to eql 'TRSS'
+
+      manager.load
+      expect_restored id
+    end
+
+    it "loads sessions (in batches) using multiple threads" do
+      manager.snapshot_load_threads = 4
+      ids = (0...1000).map { |i| create_session(i) }
+      manager.unload
+      expect( manager.active_sessions ).to eql 0
+
+      manager.load
+      expect( manager.active_sessions ).to eql 1000
+      ids.each_with_index { |id, i| expect_restored id, i }
+    end
+
+    it "expires timed out sessions after loading" do
+      id = create_session
+      timed_out = manager.create_session(nil)
+      timed_out.max_inactive_interval = 1
+      timed_out_id = timed_out.id
+      sleep 1.1
+      manager.unload
+
+      manager.load; manager.process_expires
+      expect( manager.find_session(timed_out_id) ).to be nil
+      expect( manager.find_session(id) ).to_not be nil
+    end
+
+    it "loads a snapshot written using Java serialization" do
+      manager.binary_snapshot = false
+      id = create_session
+      manager.unload
+      expect( snapshot_magic ).to_not eql 'TRSS'
+
+      manager.binary_snapshot = true
+      manager.load
+      expect_restored id
+    end
+
+  end
+
+  context "off-heap sessions" do
+
+    before do
+      manager.off_heap_max_size = 1024 * 1024
+      manager.off_heap_slab_size = 64 * 1024
+    end
+
+    it "moves idle sessions off-heap and restores them when found" do
+      manager.off_heap_idle = 0; manager.start
+      session = manager.create_session(nil)
+      session.session.set_attribute 'foo', 'bar'
+      id = session.id
+
+      sleep 1.1; manager.process_expires
+      expect( manager.off_heap_session_count ).to eql 1
+      expect( manager.find_sessions.size ).to eql 0
+      expect( manager.active_sessions ).to eql 1
+
+      session = manager.find_session(id)
+      expect( session.session.get_attribute('foo') ).to eql 'bar'
+      expect( manager.off_heap_session_count ).to eql 0
+      expect( manager.find_sessions.to_a ).to eql [ session ]
+    end
+
+    it "does not move a session being accessed" do
+      manager.off_heap_idle = 0; manager.start
+      session = manager.create_session(nil)
+      session.access
+
+      sleep 1.1; manager.process_expires
+      expect( manager.off_heap_session_count ).to eql 0
+      expect( manager.find_session(session.id) ).to be session
+
+      session.end_access
+      sleep 1.1; manager.process_expires
+      expect( manager.off_heap_session_count ).to eql 1
+    end
+
+    it "brings a moved session back on-heap when accessed" do
+      manager.off_heap_idle = 0; manager.start
+      session = manager.create_session(nil)
+      session.session.set_attribute 'foo', 'bar'
+
+      sleep 1.1; manager.process_expires
+      expect( manager.off_heap_session_count ).to eql 1
+
+      session.access; session.session.set_attribute 'foo', 'baz'; session.end_access
+      expect( manager.off_heap_session_count ).to eql 0
+      expect( manager.find_session(session.id) ).to be session
+      expect( session.session.get_attribute('foo') ).to eql 'baz'
+    end
+
+    it "moves the least recently accessed sessions when over the on-heap limit" do
+      manager.off_heap_idle = 3600; manager.max_heap_sessions = 10; manager.start
+      50.times { manager.create_session(nil) }
+
+      manager.process_expires
+      expect( manager.find_sessions.size ).to eql 10
+      expect( manager.off_heap_session_count ).to eql 40
+      expect( manager.active_sessions ).to eql 50
+    end
+
+  end
+
+  context "session takeover" do
+
+    class PreviousLoader # the (old) web-app loader
+      include org.apache.catalina.Loader
+
+      def initialize
+        urls = [].to_java(java.net.URL)
+        @class_loader = java.net.URLClassLoader.new(urls, JRuby.runtime.jruby_class_loader)
+      end
+
+      def getClassLoader; @class_loader end
+      def getContainer; @container end
+      def setContainer(container); @container = container end
+    end
+
+    let(:previous_manager) do
+      previous_manager = Java::RbTrinidadContext::DefaultManager.new
+      previous_context = tomcat.addContext('/foo-previous', tmp_dir)
+      previous_context.loader = PreviousLoader.new
+      previous_context.manager = previous_manager
+      previous_manager
+    end
+
+    it "moves sessions from the previous manager" do
+      session = previous_manager.create_session(nil)
+      expect( manager.takeover(previous_manager) ).to eql 1
+
+      expect( previous_manager.find_session(session.id) ).to be nil
+      expect( previous_manager.active_sessions ).to eql 0
+      expect( manager.find_session(session.id) ).to be session
+      expect( session.manager ).to be manager
+      expect( manager.active_sessions ).to eql 1
+    end
+
+    it "re-binds attributes that might hold previous web-app objects" do
+      session = previous_manager.create_session(nil).session
+      map = java.util.HashMap.new; map.put 'k', 1
+      session.set_attribute 'map', map
+      session.set_attribute 'string', 'str'
+      list = java.util.ArrayList.new; list.add java.lang.Object.new
+      session.set_attribute 'list', list
+
+      manager.takeover(previous_manager)
+      session = manager.find_session(session.id).session
+      expect( session.get_attribute('map') ).to eql map
+      expect( session.get_attribute('map') ).to_not be map
+      expect( session.get_attribute('string') ).to eql 'str'
+      expect( session.get_attribute('list') ).to be nil # failed to re-bind
+    end
+
+    it "keeps attributes as they are with the same class loader" do
+      previous_manager.container.loader = nil
+      session = previous_manager.create_session(nil).session
+      map = java.util.HashMap.new; map.put 'k', 1
+      session.set_attribute 'map', map
+
+      manager.takeover(previous_manager)
+      session = manager.find_session(session.id).session
+      expect( session.get_attribute('map') ).to be map
+    end
+
+  end
+
+end
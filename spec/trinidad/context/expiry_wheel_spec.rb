@@ -0,0 +1,89 @@
+require File.expand_path('../../spec_helper', File.dirname(__FILE__))
+
+describe Java::RbTrinidadContext::ExpiryWheel do
+
+  MAX_DELTA = (1 << 24) - 1 # 64^4 ticks
+
+  let(:now) { 1000037 * 1000 }
+  let(:wheel) { Java::RbTrinidadContext::ExpiryWheel.new(1000, now) }
+
+  def new_session
+    org.apache.catalina.session.StandardSession.new(nil)
+  end
+
+  def due_after(delta, session = new_session)
+    wheel.schedule(session, now + delta * 1000)
+    early = wheel.advance(now + (delta - 1) * 1000).to_a
+    expect( early ).to be_empty
+    wheel.advance(now + delta * 1000).to_a
+  end
+
+  [ 1, 10, 63, 64, 65, 4095, 4096, 4097, 64 * 64 * 64 + 5, MAX_DELTA ].each do |delta|
+    it "reports a session scheduled #{delta} ticks ahead once it is due" do
+      session = new_session
+      expect( due_after(delta, session) ).to eql [ session ]
+      expect( wheel.size ).to eql 0
+    end
+  end
+
+  it "does not report a session scheduled further than the wheel covers early" do
+    session = new_session
+    expect( due_after(MAX_DELTA + 1000, session) ).to eql [ session ]
+    expect( wheel.size ).to eql 0
+  end
+
+  it "rounds the expiry up to the next tick" do
+    session = new_session
+    wheel.schedule(session, now + 1500)
+    expect( wheel.advance(now + 1000).to_a ).to be_empty
+    expect( wheel.advance(now + 2000).to_a ).to eql [ session ]
+  end
+
+  it "does not report a cancelled session" do
+    session = new_session
+    wheel.schedule(session, now + 64 * 1000)
+    expect( wheel.cancel(session) ).to be true
+    expect( wheel.cancel(session) ).to be false
+    expect( wheel.size ).to eql 0
+    expect( wheel.advance(now + 128 * 1000).to_a ).to be_empty
+  end
+
+  it "reports a re-scheduled session at the new expiry only" do
+    later = new_session; earlier = new_session
+    wheel.schedule(later, now + 10 * 1000)
+    wheel.schedule(earlier, now + 4096 * 1000)
+    wheel.schedule(later, now + 4096 * 1000) # later
+    wheel.schedule(earlier, now + 10 * 1000) # earlier
+    expect( wheel.size ).to eql 2
+
+    expect( wheel.advance(now + 10 * 1000).to_a ).to eql [ earlier ]
+    expect( wheel.advance(now + 4095 * 1000).to_a ).to be_empty
+    expect( wheel.advance(now + 4096 * 1000).to_a ).to eql [ later ]
+  end
+
+  it "reports every session exactly once when advanced in random steps" do
+    random = Random.new(42)
+    scheduled = {}
+    1000.times do
+      session = new_session
+      expiry = now + random.rand(100_000 * 1000)
+      wheel.schedule(session, expiry); scheduled[session] = expiry
+    end
+
+    reported = {}; time = now
+    while time < now + 100_000 * 1000
+      previous = time; time += random.rand(1..5000) * 1000
+      wheel.advance(time).each do |session|
+        expect( reported ).to_not have_key session
+        expiry = scheduled[session]
+        due = ( expiry / 1000.0 ).ceil * 1000
+        expect( due ).to be > previous
+        expect( due ).to be <= time
+        reported[session] = true
+      end
+    end
+    expect( reported.size ).to eql scheduled.size
+    expect( wheel.size ).to eql 0
+  end
+
+end
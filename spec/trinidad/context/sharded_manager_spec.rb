@@ -0,0 +1,57 @@
+require File.expand_path('../../spec_helper', File.dirname(__FILE__))
+require 'tmpdir'
+
+describe Java::RbTrinidadContext::ShardedManager do
+
+  let(:tomcat) { org.apache.catalina.startup.Tomcat.new }
+  let(:tmp_dir) { Dir.mktmpdir('trinidad-sessions') }
+  let(:manager) do
+    manager = Java::RbTrinidadContext::ShardedManager.new
+    manager.shards = 4
+    tomcat.addContext('/foo', tmp_dir).manager = manager
+    manager
+  end
+
+  after { FileUtils.rm_rf tmp_dir }
+
+  it "rounds shards up to a power of 2" do
+    manager.shards = 6
+    expect( manager.shards ).to eql 8
+  end
+
+  it "finds sessions across all shards" do
+    sessions = (0...100).map { manager.create_session(nil) }
+    ids = sessions.map(&:id)
+
+    expect( manager.find_sessions.map(&:id).sort ).to eql ids.sort
+    expect( manager.list_session_ids.split(' ').sort ).to eql ids.sort
+    shard_sessions = manager.shard_sessions.split(',').map(&:to_i)
+    expect( shard_sessions.size ).to eql 4
+    expect( shard_sessions.inject(:+) ).to eql 100
+    sessions.each { |session| expect( manager.find_session(session.id) ).to be session }
+
+    expect( manager.session_counter ).to eql 100
+    expect( manager.active_sessions ).to eql 100
+  end
+
+  it "counts expired sessions of all shards" do
+    sessions = (0...100).map { manager.create_session(nil) }
+    sessions[0, 50].each(&:expire)
+
+    expect( manager.expired_sessions ).to eql 50
+    expect( manager.active_sessions ).to eql 50
+    expect( manager.find_sessions.size ).to eql 50
+    expect( manager.find_session(sessions[0].id) ).to be nil
+    expect( manager.find_session(sessions[99].id) ).to be sessions[99]
+  end
+
+  it "keeps sessions when re-sharded" do
+    sessions = (0...100).map { manager.create_session(nil) }
+    manager.shards = 16
+
+    expect( manager.shards ).to eql 16
+    expect( manager.active_sessions ).to eql 100
+    sessions.each { |session| expect( manager.find_session(session.id) ).to be session }
+  end
+
+end
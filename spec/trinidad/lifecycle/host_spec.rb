@@ -336,6 +336,15 @@ describe Trinidad::Lifecycle::Host do
         new_context.name.should_not == 'foo'
       end
 
+      it "takes over sessions from the old manager before stopping" do
+        new_context.manager = manager = Java::RbTrinidadContext::DefaultManager.new
+        old_context.manager = old_manager = Java::RbTrinidadContext::DefaultManager.new
+        expect(manager).to receive(:takeover).with(old_manager).once.ordered.and_return 0
+        expect(old_context).to receive(:stop).once.ordered
+        expect(old_context).to receive(:destroy).once.ordered
+        takeover.lifecycleEvent(after_start_event)
+      end
+
       work_dir = File.expand_path('work', MOCK_RACK_WEB_APP_DIR)
 
       before do
@@ -159,6 +159,7 @@ describe Trinidad::Logging do
 
       logger = Trinidad::Logging.configure_web_app(web_app, context)
       logger.warning "me-he-he-he" # file creation might be lazy ...
+      logger.handlers.each(&:close) # merging happens in the background
 
       File.exist?("#{MOCK_WEB_APP_DIR}/log/staging#{y_date}.log").should be true
       File.read("#{MOCK_WEB_APP_DIR}/log/staging#{y_date}.log").should == "very old entry\nold entry\n"
@@ -434,6 +435,111 @@ describe Trinidad::Logging do
       log_content.should =~ /another log entry/
     end
 
+    it 'logs using a channel writer' do
+      file_handler = FileHandler.new(log_dir, prefix, suffix)
+      file_handler.rotatable = false
+      file_handler.writer_type = 'channel'
+
+      file_handler.publish new_log_record('channel log entry')
+
+      File.read(log_file).should =~ /channel log entry/
+    end
+
+    it 'logs using a mapped writer (truncating the file on close)' do
+      File.open(log_file, 'w') { |f| f << "previous log entry\n" }
+      file_handler = FileHandler.new(log_dir, prefix, suffix)
+      file_handler.rotatable = false
+      file_handler.writer_type = 'mapped'
+      file_handler.map_size = 64
+
+      3.times { |i| file_handler.publish new_log_record("mapped log entry #{i}") }
+      file_handler.close
+
+      log_content = File.read(log_file)
+      log_content.should =~ /\Aprevious log entry\n.*?mapped log entry 0.*?mapped log entry 2\n\z/m
+      log_content.should_not include("\0")
+    end
+
+    it 'rotates when the log file size is reached' do
+      file_handler = FileHandler.new(log_dir, prefix, suffix)
+      file_handler.rotatable = false
+      file_handler.max_file_size = 100
+
+      10.times { |i| file_handler.publish new_log_record("sized log entry #{i}") }
+      file_handler.close
+
+      segments = Dir.glob("#{log_dir}/#{prefix}.*#{suffix}")
+      begin
+        segments.should_not be_empty
+        File.size(log_file).should < 100 + 50
+        log_content = segments.sort.map { |f| File.read(f) }.join + File.read(log_file)
+        log_content.should =~ /sized log entry 0.*sized log entry 9/m
+      ensure
+        FileUtils.rm segments
+      end
+    end
+
+    it 'compresses rotated log files (in the background)' do
+      file_handler = FileHandler.new(log_dir, prefix, suffix)
+      file_handler.rotatable = false
+      file_handler.max_file_size = 100
+      file_handler.compress = true
+
+      10.times { |i| file_handler.publish new_log_record("sized log entry #{i}") }
+      file_handler.close # waits for compression to finish
+
+      segments = Dir.glob("#{log_dir}/#{prefix}.*#{suffix}*")
+      begin
+        segments.should_not be_empty
+        segments.each { |segment| segment.should =~ /\.gz$/ }
+      ensure
+        FileUtils.rm segments
+      end
+    end
+
+    it 'logs asynchronously (writing all queued records on close)' do
+      file_handler = FileHandler.new(log_dir, prefix, suffix)
+      file_handler.rotatable = false
+      file_handler.async = true
+
+      100.times { |i| file_handler.publish new_log_record("async entry #{i}") }
+      file_handler.close
+
+      log_content = File.read(log_file)
+      log_content.scan(/async entry \d+/).size.should == 100
+      log_content.should =~ /async entry 0.*async entry 99/m
+      file_handler.dropped_count.should == 0
+    end
+
+    it 'closes while publishers keep dropping the oldest records' do
+      file_handler = FileHandler.new(log_dir, prefix, suffix)
+      file_handler.rotatable = false
+      file_handler.async = true
+      file_handler.queue_size = 4
+      file_handler.overflow_policy = FileHandler::OverflowPolicy::DROP_OLDEST
+
+      publishers = 4.times.map do
+        Thread.new { 2000.times { |i| file_handler.publish new_log_record("entry #{i}") } }
+      end
+      file_handler.publish new_log_record('first entry')
+      file_handler.close # must not hang on a dropped end-of-queue marker
+      publishers.each(&:join)
+
+      File.read(log_file).should =~ /entry/
+    end
+
+    it 'logs synchronously once async mode is turned off' do
+      file_handler = FileHandler.new(log_dir, prefix, suffix)
+      file_handler.rotatable = false
+      file_handler.async = true
+      file_handler.publish new_log_record('queued entry')
+      file_handler.async = false # drains the queue
+
+      file_handler.publish new_log_record('direct entry')
+
+      File.read(log_file).should =~ /queued entry.*direct entry/m
+    end
+
     private
 
     def new_log_record(options = {})
@@ -478,6 +584,25 @@ describe Trinidad::Logging::DefaultFormatter do
     formatter.format(record).should == "2011-02-05 13:45:22 +0000 INFO: basza meg a zold tucsok\n"
   end
 
+  it "formats (cached) time-stamps within the same second" do
+    time = Time.utc(2011, 2, 5, 13, 45, 22).to_java.time
+    formatter = new_formatter("HH:mm:ss Z", 'GMT')
+    record = JUL::LogRecord.new JUL::Level::INFO, "first"
+    record.millis = time + 100
+    formatter.format(record).should == "13:45:22 +0000 INFO: first\n"
+    record = JUL::LogRecord.new JUL::Level::INFO, "second"
+    record.millis = time + 999
+    formatter.format(record).should == "13:45:22 +0000 INFO: second\n"
+    record.millis = time + 1000
+    formatter.format(record).should == "13:45:23 +0000 INFO: second\n"
+
+    formatter = new_formatter("ss.SSS", 'GMT')
+    record.millis = time + 100
+    formatter.format(record).should == "22.100 INFO: second\n"
+    record.millis = time + 101
+    formatter.format(record).should == "22.101 INFO: second\n"
+  end
+
   it "does not add new line to message if already present" do
     record = JUL::LogRecord.new JUL::Level::INFO, msg = "basza meg a zold tucsok\n"
     record.millis = java.lang.System.current_time_millis
@@ -513,6 +638,129 @@ describe Trinidad::Logging::DefaultFormatter do
 
 end
 
+describe Trinidad::Logging::JsonFormatter do
+
+  it "formats a record as a JSON line" do
+    time = Time.utc(2011, 2, 5, 13, 45, 22)
+    record = JUL::LogRecord.new JUL::Level::INFO, "Started \"GET\" /\n"
+    record.millis = time.to_java.time + 42
+    record.logger_name = 'org.apache.catalina.core.ContainerBase.[Tomcat].[localhost].[/foo]'
+
+    json = Trinidad::Logging::JsonFormatter.new.format(record)
+    json.should =~ /\A\{.*\}\n\z/
+    json.should include '"timestamp":"2011-02-05T13:45:22.042Z"'
+    json.should include '"level":"INFO"'
+    json.should include '"context":"/foo"'
+    json.should include '"message":"Started \\"GET\\" /"'
+  end
+
+  it "formats the thrown stack trace (escaped)" do
+    record = JUL::LogRecord.new JUL::Level::SEVERE, "Bazinga!"
+    record.thrown = java.lang.RuntimeException.new("42")
+
+    json = Trinidad::Logging::JsonFormatter.new.format(record)
+    json.should_not include '"logger"'
+    json.should include '"thrown":"java.lang.RuntimeException: 42\\n\\tat '
+    json.count("\n").should == 1
+  end
+
+  it "is used when configured with the json format" do
+    formatter = Trinidad::Logging.send(:web_app_formatter, 'json')
+    formatter.should be_a Trinidad::Logging::JsonFormatter
+  end
+
+end
+
+describe Trinidad::Logging::StackTraceFormatter do
+
+  def print_stack_trace(error)
+    writer = java.io.StringWriter.new
+    error.printStackTrace(java.io.PrintWriter.new(writer))
+    writer.toString.gsub(%r{\tat [^\s\(]+/}, "\tat ") # no (Java 9+) module names
+  end
+
+  it "renders the same as printStackTrace" do
+    cause = java.lang.IllegalStateException.new("cause")
+    error = java.lang.RuntimeException.new("42", cause)
+    formatter = Trinidad::Logging::StackTraceFormatter.new
+    formatter.format(error).to_s.should == print_stack_trace(error)
+  end
+
+  it "limits the printed frames" do
+    error = java.lang.RuntimeException.new("42")
+    formatter = Trinidad::Logging::StackTraceFormatter.new
+    formatter.max_frames = 1
+    trace = formatter.format(error).to_s
+    trace.scan(/\tat /).size.should == 1
+    trace.should =~ /\t\.\.\. \d+ frames omitted\n\z/
+  end
+
+  it "prints repeated traces only once within the window" do
+    error = java.lang.RuntimeException.new("42")
+    formatter = Trinidad::Logging::StackTraceFormatter.new
+    formatter.repeat_window = 60 * 1000
+    formatter.format(error).to_s.should == print_stack_trace(error)
+    formatter.format(error).to_s.should ==
+      "java.lang.RuntimeException: 42 (same trace as 0s ago, repeated 1x)\n"
+  end
+
+  it "is configured for the web app formatter" do
+    formatter = Trinidad::Logging.stack_trace_formatter :max_frames => 10, :fold_frames => true
+    formatter.max_frames.should == 10
+    formatter.fold_frames.should be true
+    formatter.repeat_window.should == 0
+  end
+
+end
+
+describe Trinidad::Logging::LoggingContext do
+
+  it "resolves the context from a logger name" do
+    name = 'org.apache.catalina.core.ContainerBase.[Tomcat].[localhost].[/ctx1]'
+    context = Trinidad::Logging::LoggingContext.forLogger(name)
+    context.name.should == '/ctx1'
+    Trinidad::Logging::LoggingContext.forLogger(name).should be context
+    Trinidad::Logging::LoggingContext.forName('/ctx1').should be context
+  end
+
+  it "returns nil for non-context loggers" do
+    Trinidad::Logging::LoggingContext.forLogger('org.apache.catalina.core.ContainerBase').should be nil
+    Trinidad::Logging::LoggingContext.forLogger('').should be nil
+  end
+
+  it "changes the (context) logger level" do
+    name = 'org.apache.catalina.core.ContainerBase.[Tomcat].[localhost].[/ctx2]'
+    context = Trinidad::Logging::LoggingContext.forLogger(name)
+    context.level.should be nil
+
+    Trinidad::Logging.set_web_app_level('/ctx2', :warn).should be true
+    context.level.should == JUL::Level::WARNING
+    JUL::Logger.getLogger(name).level.should == JUL::Level::WARNING
+    JUL::Logger.getLogger(name).isLoggable(JUL::Level::INFO).should be false
+
+    Trinidad::Logging.set_web_app_level('/ctx-none', :warn).should be false
+  end
+
+  it "resolves contexts of the same name by host" do
+    prefix = 'org.apache.catalina.core.ContainerBase.[Tomcat]'
+    context1 = Trinidad::Logging::LoggingContext.forLogger("#{prefix}.[localhost].[/ctx3]")
+    context1.host_name.should == 'localhost'
+    Trinidad::Logging::LoggingContext.forName('/ctx3').should be context1
+
+    context2 = Trinidad::Logging::LoggingContext.forLogger("#{prefix}.[example.com].[/ctx3]")
+    context2.host_name.should == 'example.com'
+    Trinidad::Logging::LoggingContext.forName('/ctx3').should be nil # ambiguous
+    Trinidad::Logging::LoggingContext.forName('localhost', '/ctx3').should be context1
+    Trinidad::Logging::LoggingContext.forName('example.com', '/ctx3').should be context2
+
+    Trinidad::Logging.set_web_app_level('/ctx3', :warn).should be false
+    Trinidad::Logging.set_web_app_level('/ctx3', :warn, 'example.com').should be true
+    context2.level.should == JUL::Level::WARNING
+    context1.level.should be nil
+  end
+
+end
+
 describe Trinidad::Logging::MessageFormatter do
 
   it "logs message (adding a new line)" do
@@ -285,6 +285,25 @@ describe Trinidad::Server do
       should include('Trinidad::Lifecycle::WebApp::Default')
   end
 
+  it "records request latencies for each webapp" do
+    Trinidad.configuration.web_app_dir = MOCK_WEB_APP_DIR
+    server = deployed_server
+
+    default_context(server).pipeline.valves.map { |v| v.class.name }.
+      should include('Java::RbTrinidadValves::LatencyValve')
+  end
+
+  it "does not record request latencies when :latency_stats is false" do
+    Trinidad.configure do |config|
+      config.web_app_dir = MOCK_WEB_APP_DIR
+      config[:latency_stats] = false
+    end
+    server = deployed_server
+
+    default_context(server).pipeline.valves.map { |v| v.class.name }.
+      should_not include('Java::RbTrinidadValves::LatencyValve')
+  end
+
   it "loads application extensions from the root of the configuration" do
     Trinidad.configure do |config|
       config.web_app_dir = MOCK_WEB_APP_DIR
@@ -443,6 +462,21 @@ describe Trinidad::Server do
     expect( hosts.map { |host| host.aliases }.flatten ).to eql []
   end
 
+  it "adds an access log valve to hosts configured with :access_log" do
+    server = configured_server( :hosts => {
+      'foo' => { :name => 'localhost', :access_log => true },
+      'lol' => { :name => 'lolhost', :access_log => { :format => :json, :capacity => 1024 } }
+    })
+
+    hosts = server.tomcat.engine.find_children
+    valves = hosts.map do |host|
+      host.pipeline.valves.find { |valve| valve.is_a?(Java::RbTrinidadValves::AccessLogValve) }
+    end
+    valves.compact.should have(2).valves
+    json_valve = valves.find { |valve| valve.format == 'json' }
+    expect( json_valve.capacity ).to eql 1024
+  end
+
   it "sets default host app base to current working directory" do
     server = configured_server
     expect( server.tomcat.host.app_base ).to eql Dir.pwd
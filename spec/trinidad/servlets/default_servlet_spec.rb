@@ -0,0 +1,402 @@
+require File.expand_path('../../spec_helper', File.dirname(__FILE__))
+require 'tmpdir'
+require 'net/http'
+require 'zlib'
+require 'stringio'
+require 'digest/md5'
+
+describe Java::RbTrinidadServlets::DefaultServlet do
+
+  let(:tomcat) { org.apache.catalina.startup.Tomcat.new }
+  let(:root_dir) { Dir.mktmpdir('trinidad-public') }
+
+  after do
+    tomcat.stop if tomcat.server.state_name =~ /START/i
+    FileUtils.rm_rf root_dir
+  end
+
+  # starts serving root_dir/public with the given (public.*) parameters
+  def start_servlet(params = {})
+    connector = org.apache.catalina.connector.Connector.new('org.apache.coyote.http11.Http11NioProtocol')
+    connector.port = 0
+    tomcat.base_dir = root_dir
+    tomcat.service.add_connector connector
+    tomcat.connector = connector
+
+    context = tomcat.add_context('', root_dir)
+    context.parent_class_loader = JRuby.runtime.jruby_class_loader
+    { 'txt' => 'text/plain', 'js' => 'application/javascript', 'css' => 'text/css' }.each do |ext, type|
+      context.add_mime_mapping ext, type
+    end
+    servlet = Java::RbTrinidadServlets::DefaultServlet.new
+    wrapper = org.apache.catalina.startup.Tomcat.add_servlet(context, 'default', servlet)
+    wrapper.add_init_parameter 'public.root', '/public'
+    params.each { |name, value| wrapper.add_init_parameter "public.#{name}", value.to_s }
+    wrapper.load_on_startup = 1
+    context.add_servlet_mapping '/', 'default'
+    yield context if block_given?
+
+    tomcat.start
+    @port = connector.local_port
+    servlet
+  end
+
+  def public_file(path, content)
+    path = File.join(root_dir, 'public', path)
+    FileUtils.mkdir_p File.dirname(path)
+    File.open(path, 'wb') { |file| file << content }
+    path
+  end
+
+  def get(path, headers = {})
+    headers = { 'Accept-Encoding' => 'identity' }.merge(headers) # no decoding
+    Net::HTTP.start('localhost', @port) { |http| http.get(path, headers) }
+  end
+
+  context "asset cache" do
+
+    let(:script) { "console.log('hello');\n" * 100 }
+
+    it "serves a gzip-ed variant with it's own ETag" do
+      public_file 'app.js', script
+      start_servlet :asset_cache_size => 1024
+
+      response = get('/app.js')
+      expect( response.code ).to eql '200'
+      expect( response['Content-Encoding'] ).to be nil
+      expect( response.body ).to eql script
+      etag = response['ETag']
+
+      response = get('/app.js', 'Accept-Encoding' => 'gzip, deflate')
+      expect( response.code ).to eql '200'
+      expect( response['Content-Encoding'] ).to eql 'gzip'
+      expect( response['Vary'] ).to eql 'Accept-Encoding'
+      expect( Zlib::GzipReader.new(StringIO.new(response.body)).read ).to eql script
+      expect( response['ETag'] ).to eql etag.sub(/"\z/, '-gz"')
+    end
+
+    it "answers conditional requests with the tag of the matching variant" do
+      public_file 'app.js', script
+      start_servlet :asset_cache_size => 1024
+      etag = get('/app.js')['ETag']
+      gzip_etag = get('/app.js', 'Accept-Encoding' => 'gzip')['ETag']
+      expect( gzip_etag ).to_not eql etag
+
+      response = get('/app.js', 'Accept-Encoding' => 'gzip', 'If-None-Match' => gzip_etag)
+      expect( response.code ).to eql '304'
+      expect( response['ETag'] ).to eql gzip_etag
+
+      response = get('/app.js', 'If-None-Match' => etag)
+      expect( response.code ).to eql '304'
+      expect( response['ETag'] ).to eql etag
+
+      response = get('/app.js', 'If-None-Match' => '"another"')
+      expect( response.code ).to eql '200'
+    end
+
+    it "serves (and evicts) assets while other threads are reading" do
+      contents = (0...200).map do |i|
+        content = "#{i}-" + ( '%064x' % ( i * 7919 ) ) * 16 # ~ 1kB
+        public_file "files/#{i}.bin", content
+        content
+      end
+      servlet = start_servlet :asset_cache_size => 64 # kB (holds ~ 60 files)
+
+      threads = (0...8).map do |t|
+        Thread.new do
+          random = Random.new(t); failures = []
+          100.times do
+            i = random.rand(contents.size)
+            response = get("/files/#{i}.bin")
+            unless response.code == '200' && response.body == contents[i]
+              failures << "#{i}: #{response.code}"
+            end
+          end
+          failures
+        end
+      end
+
+      expect( threads.map(&:value).flatten ).to eql []
+      cache = servlet.asset_cache
+      expect( cache.size ).to be <= cache.max_size
+      expect( cache.count ).to be < contents.size
+      expect( cache.hit_count + cache.miss_count ).to be >= 800
+    end
+
+  end
+
+  context "asset index" do
+
+    let(:css) { "body { color: red }\n" }
+
+    def start_indexed(params = {})
+      servlet = start_servlet(params.merge(:asset_index => 60000)) do |context|
+        context.caching_allowed = false # no (Tomcat) resource cache TTL
+      end
+      sleep 0.05 until servlet.asset_index.complete?
+      servlet
+    end
+
+    it "answers conditional requests using the indexed (content) ETag" do
+      public_file 'app.css', css
+      start_indexed
+
+      response = get('/app.css', 'If-None-Match' => %("#{Digest::MD5.hexdigest(css)}"))
+      expect( response.code ).to eql '304'
+      expect( response['ETag'] ).to eql %("#{Digest::MD5.hexdigest(css)}")
+    end
+
+    it "does not answer from the index for a file changed since indexed" do
+      path = public_file 'app.css', css
+      start_indexed
+      etag = %("#{Digest::MD5.hexdigest(css)}")
+      expect( get('/app.css', 'If-None-Match' => etag).code ).to eql '304'
+
+      last_modified = File.mtime(path)
+      public_file 'app.css', changed = "body { color: blue; margin: 0 }\n"
+      File.utime(last_modified + 2, last_modified + 2, path)
+
+      response = get('/app.css', 'If-None-Match' => etag)
+      expect( response.code ).to eql '200'
+      expect( response.body ).to eql changed
+      expect( response['ETag'] ).to_not eql etag
+    end
+
+  end
+
+  context "ranges" do
+
+    let(:data) { (0...1000).map { |i| ( ?a.ord + i % 26 ).chr }.join }
+
+    [ {}, { :asset_cache_size => 1024 } ].each do |params|
+
+      describe "(#{params.empty? ? 'no asset cache' : 'asset cache'})" do
+
+        before do
+          public_file 'data.txt', data
+          start_servlet params
+        end
+
+        it "serves a single range" do
+          response = get('/data.txt', 'Range' => 'bytes=0-9')
+          expect( response.code ).to eql '206'
+          expect( response['Content-Range'] ).to eql 'bytes 0-9/1000'
+          expect( response['Content-Length'] ).to eql '10'
+          expect( response.body ).to eql data[0, 10]
+        end
+
+        it "serves a suffix range" do
+          response = get('/data.txt', 'Range' => 'bytes=-10')
+          expect( response.code ).to eql '206'
+          expect( response['Content-Range'] ).to eql 'bytes 990-999/1000'
+          expect( response.body ).to eql data[990, 10]
+        end
+
+        it "serves multiple ranges" do
+          response = get('/data.txt', 'Range' => 'bytes=0-9,20-29')
+          expect( response.code ).to eql '206'
+          expect( response['Content-Type'] ).to match %r{\Amultipart/byteranges; boundary=}
+          boundary = response['Content-Type'].split('boundary=').last
+          parts = response.body.split("--#{boundary}").map(&:strip)
+          expect( parts.shift ).to eql ''
+          expect( parts.pop ).to eql '--'
+          expect( parts ).to eql [
+            "Content-Type: text/plain\r\nContent-Range: bytes 0-9/1000\r\n\r\n#{data[0, 10]}",
+            "Content-Type: text/plain\r\nContent-Range: bytes 20-29/1000\r\n\r\n#{data[20, 10]}"
+          ]
+        end
+
+        it "responds with a 416 for an unsatisfiable range" do
+          response = get('/data.txt', 'Range' => 'bytes=1000-')
+          expect( response.code ).to eql '416'
+          expect( response['Content-Range'] ).to eql 'bytes */1000'
+        end
+
+        it "serves a range only if If-Range matches" do
+          etag = get('/data.txt')['ETag']
+          response = get('/data.txt', 'Range' => 'bytes=0-9', 'If-Range' => etag)
+          expect( response.code ).to eql '206'
+          expect( response.body ).to eql data[0, 10]
+
+          response = get('/data.txt', 'Range' => 'bytes=0-9', 'If-Range' => '"another"')
+          expect( response.code ).to eql '200'
+          expect( response['Content-Range'] ).to be nil
+          expect( response.body ).to eql data
+        end
+
+      end
+
+    end
+
+  end
+
+  context "immutable assets" do
+
+    let(:digest) { '0123456789abcdef0123456789abcdef' }
+
+    before do
+      public_file "assets/app-#{digest}.js", "alert(1);\n"
+      public_file 'assets/app.js', "alert(2);\n"
+      start_servlet :immutable_assets => true
+    end
+
+    it "serves fingerprinted assets as immutable with the digest ETag" do
+      response = get("/assets/app-#{digest}.js")
+      expect( response.code ).to eql '200'
+      expect( response['Cache-Control'] ).to eql 'public, max-age=31536000, immutable'
+      expect( response['ETag'] ).to eql %("#{digest}")
+      expect( response.body ).to eql "alert(1);\n"
+    end
+
+    it "answers conditional requests for fingerprinted assets" do
+      response = get("/assets/app-#{digest}.js", 'If-None-Match' => %("#{digest}"))
+      expect( response.code ).to eql '304'
+      expect( response['Cache-Control'] ).to eql 'public, max-age=31536000, immutable'
+      expect( response['ETag'] ).to eql %("#{digest}")
+
+      response = get("/assets/app-#{digest}.js", 'If-Modified-Since' => 'Thu, 01 Jan 1970 00:00:01 GMT')
+      expect( response.code ).to eql '304'
+    end
+
+    it "serves assets without a fingerprint as usual" do
+      response = get('/assets/app.js')
+      expect( response.code ).to eql '200'
+      expect( response['Cache-Control'] ).to be nil
+      expect( response['ETag'] ).to_not eql %("#{digest}")
+    end
+
+  end
+
+  context "sendfile" do
+
+    class SendfileRecorder < org.apache.catalina.valves.ValveBase
+      def filenames; @filenames ||= [] end
+
+      def invoke(request, response)
+        get_next.invoke(request, response)
+        filenames << request.get_attribute('org.apache.tomcat.sendfile.filename')
+      end
+    end
+
+    class WrappingFilter # e.g. a Rack filter wrapping the request
+      include javax.servlet.Filter
+
+      def init(config); end
+      def destroy; end
+
+      def doFilter(request, response, chain)
+        chain.do_filter javax.servlet.http.HttpServletRequestWrapper.new(request), response
+      end
+    end
+
+    let(:data) { 'abcdefghijklmnopqrstuvwxyz' * 150 } # ~ 4kB
+    let(:recorder) { SendfileRecorder.new }
+
+    def start_sendfile(wrap = false)
+      public_file 'big.txt', data
+      public_file 'small.txt', "small\n"
+      start_servlet(:sendfile_size => 1, :asset_cache_size => 1024) do |context|
+        context.pipeline.add_valve recorder
+        if wrap
+          filter_def = org.apache.catalina.deploy.FilterDef.new
+          filter_def.filter_name = 'wrap'; filter_def.filter = WrappingFilter.new
+          context.add_filter_def filter_def
+          filter_map = org.apache.catalina.deploy.FilterMap.new
+          filter_map.filter_name = 'wrap'; filter_map.add_url_pattern '/*'
+          context.add_filter_map filter_map
+        end
+      end
+    end
+
+    it "serves files larger than the sendfile size using sendfile" do
+      servlet = start_sendfile
+      response = get('/big.txt')
+      expect( response.code ).to eql '200'
+      expect( response['Content-Length'] ).to eql data.size.to_s
+      expect( response.body ).to eql data
+      expect( recorder.filenames ).to eql [ File.join(File.realpath(root_dir), 'public/big.txt') ]
+      expect( servlet.asset_cache.contains('/public/big.txt') ).to be false
+
+      response = get('/small.txt')
+      expect( response.body ).to eql "small\n"
+      expect( recorder.filenames.last ).to be nil
+      expect( servlet.asset_cache.contains('/public/small.txt') ).to be true
+    end
+
+    it "uses sendfile for a wrapped request" do
+      start_sendfile(true)
+      response = get('/big.txt')
+      expect( response.body ).to eql data
+      expect( recorder.filenames ).to eql [ File.join(File.realpath(root_dir), 'public/big.txt') ]
+    end
+
+  end
+
+  context "negative lookup" do
+
+    def start_negative_lookup
+      servlet = start_servlet :asset_index => 60000, :negative_lookup => true
+      sleep 0.05 until servlet.asset_index.complete?
+      servlet
+    end
+
+    it "responds with a 404 for paths not indexed" do
+      public_file 'app.css', "body {}\n"
+      public_file 'css/site.css', "p {}\n"
+      servlet = start_negative_lookup
+      expect( servlet.negative_lookup? ).to be true
+
+      expect( get('/missing.css').code ).to eql '404'
+      expect( get('/css/missing.css').code ).to eql '404'
+      expect( get('/app.css').body ).to eql "body {}\n"
+      expect( get('/css/site.css').body ).to eql "p {}\n"
+    end
+
+    it "serves files added after indexing once re-scanned" do
+      public_file 'app.css', "body {}\n"
+      servlet = start_negative_lookup
+      public_file 'late.css', "late {}\n"
+      expect( get('/late.css').code ).to eql '404'
+
+      servlet.asset_index.scan
+      response = get('/late.css')
+      expect( response.code ).to eql '200'
+      expect( response.body ).to eql "late {}\n"
+    end
+
+  end
+
+  context "warm-up" do
+
+    let(:digest) { '0123456789abcdef0123456789abcdef' }
+
+    before do
+      (1..5).each { |i| public_file "f#{i}.txt", 'x' * ( i * 10 ) }
+    end
+
+    it "pre-loads the smallest files into the asset cache" do
+      servlet = start_servlet :warm_up => 3, :asset_cache_size => 1024
+      cache = servlet.asset_cache
+      cached = (1..5).map { |i| cache.contains("/public/f#{i}.txt") }
+      expect( cached ).to eql [ true, true, true, false, false ]
+      expect( cache.count ).to eql 3
+
+      expect( get('/f1.txt').body ).to eql 'x' * 10
+      expect( cache.hit_count ).to eql 1
+      expect( cache.miss_count ).to eql 0
+    end
+
+    it "pre-loads assets listed in the (sprockets) manifest" do
+      public_file 'assets/manifest-0123.json',
+        %({"files":{},"assets":{"app.js":"app-#{digest}.js"}})
+      public_file "assets/app-#{digest}.js", "alert(1);\n"
+      servlet = start_servlet :warm_up => 3, :asset_cache_size => 1024
+      cache = servlet.asset_cache
+      expect( cache.contains("/public/assets/app-#{digest}.js") ).to be true
+      expect( cache.contains('/public/f1.txt') ).to be false
+      expect( cache.count ).to eql 1
+    end
+
+  end
+
+end
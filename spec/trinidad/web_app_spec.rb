@@ -1133,6 +1133,145 @@ EOF
     app.cache_object_max_size.should == 1000
   end
 
+  it "accepts public asset cache parameters" do
+    app = Trinidad::WebApp.create({
+      :root_dir => Dir.pwd, :public => {
+        :asset_cache_size => 10 * 1024,
+        :asset_cache_object_max_size => 256
+      }
+    })
+
+    app.asset_cache_size.should == 10240
+    app.asset_cache_object_max_size.should == 256
+    app.context_params['public.asset_cache_size'].should == '10240'
+    app.context_params['public.asset_cache_object_max_size'].should == '256'
+  end
+
+  it "accepts public sendfile size" do
+    app = Trinidad::WebApp.create({
+      :root_dir => Dir.pwd, :public => { :sendfile_size => 1024 }
+    })
+
+    app.sendfile_size.should == 1024
+    app.context_params['public.sendfile_size'].should == '1024'
+  end
+
+  it "accepts public asset index configuration" do
+    app = Trinidad::WebApp.create({
+      :root_dir => Dir.pwd, :public => { :asset_index => true }
+    })
+    app.asset_index.should == true
+    app.context_params['public.asset_index'].should == 'true'
+
+    app = Trinidad::WebApp.create({
+      :root_dir => Dir.pwd, :public => { :asset_index => 10000 }
+    })
+    app.context_params['public.asset_index'].should == '10000'
+
+    app = Trinidad::WebApp.create({ :root_dir => Dir.pwd, :public => 'public' })
+    app.asset_index.should be nil
+    app.context_params.key?('public.asset_index').should be false
+  end
+
+  it "accepts negative lookup (with asset index) configuration" do
+    app = Trinidad::WebApp.create({
+      :root_dir => Dir.pwd, :public => { :negative_lookup => true }
+    })
+    app.negative_lookup.should == true
+    app.context_params.key?('public.negative_lookup').should be false
+
+    app = Trinidad::WebApp.create({
+      :root_dir => Dir.pwd, :public => { :asset_index => true, :negative_lookup => true }
+    })
+    app.context_params['public.negative_lookup'].should == 'true'
+  end
+
+  it "accepts immutable (fingerprinted) assets configuration" do
+    app = Trinidad::WebApp.create({
+      :root_dir => Dir.pwd, :public => { :immutable_assets => true }
+    })
+    app.context_params['public.immutable_assets'].should == 'true'
+
+    app = Trinidad::WebApp.create({
+      :root_dir => Dir.pwd, :public => { :immutable_assets => '/packs' }
+    })
+    app.context_params['public.immutable_assets'].should == '/packs'
+
+    app = Trinidad::WebApp.create({ :root_dir => Dir.pwd })
+    app.context_params.key?('public.immutable_assets').should be false
+  end
+
+  it "accepts public warm-up configuration" do
+    app = Trinidad::WebApp.create({
+      :root_dir => Dir.pwd, :public => { :warm_up => 250 }
+    })
+    app.warm_up.should == 250
+    app.context_params['public.warm_up'].should == '250'
+
+    app = Trinidad::WebApp.create({ :root_dir => Dir.pwd })
+    app.context_params.key?('public.warm_up').should be false
+  end
+
+  it "configures the session manager from :session_manager" do
+    app = Trinidad::WebApp.create({
+      :root_dir => Dir.pwd, :session_manager => { :warm_up => true }
+    })
+    manager = app.context_manager
+    manager.java_class.name.should == 'rb.trinidad.context.DefaultManager'
+    manager.warm_up?.should be true
+
+    app = Trinidad::WebApp.create({ :root_dir => Dir.pwd })
+    app.context_manager.warm_up?.should be false
+  end
+
+  it "configures off-heap session storage from :session_manager" do
+    app = Trinidad::WebApp.create({
+      :root_dir => Dir.pwd, :session_manager => {
+        :off_heap_max_size => 64 * 1024 * 1024, :max_heap_sessions => 1000
+      }
+    })
+    manager = app.context_manager
+    manager.off_heap_max_size.should == 64 * 1024 * 1024
+    manager.max_heap_sessions.should == 1000
+
+    app = Trinidad::WebApp.create({ :root_dir => Dir.pwd })
+    app.context_manager.off_heap_max_size.should == 0
+  end
+
+  it "configures binary session snapshots from :session_manager" do
+    app = Trinidad::WebApp.create({
+      :root_dir => Dir.pwd, :session_manager => {
+        :binary_snapshot => true, :snapshot_compress => true
+      }
+    })
+    manager = app.context_manager
+    manager.binary_snapshot?.should be true
+    manager.snapshot_compress?.should be true
+
+    app = Trinidad::WebApp.create({ :root_dir => Dir.pwd })
+    app.context_manager.binary_snapshot?.should be false
+  end
+
+  it "configures a sharded session manager from :session_manager" do
+    app = Trinidad::WebApp.create({
+      :root_dir => Dir.pwd, :session_manager => { :shards => 6, :warm_up => true }
+    })
+    manager = app.context_manager
+    manager.java_class.name.should == 'rb.trinidad.context.ShardedManager'
+    manager.shards.should == 8
+    manager.warm_up?.should be true
+
+    app = Trinidad::WebApp.create({ :root_dir => Dir.pwd })
+    app.context_manager.java_class.name.should == 'rb.trinidad.context.DefaultManager'
+  end
+
+  it "does not set asset cache parameters by default" do
+    app = Trinidad::WebApp.create({ :root_dir => Dir.pwd })
+
+    app.asset_cache_size.should be nil
+    app.context_params.key?('public.asset_cache_size').should be false
+  end
+
   it "turns off caching in development (if not specified)" do
     app = Trinidad::WebApp.create({
       :root_dir => Dir.pwd, :environment => 'development'
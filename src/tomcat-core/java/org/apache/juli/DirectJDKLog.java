@@ -17,10 +17,12 @@
 
 package org.apache.juli.logging;
 
+import java.lang.reflect.Method;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
 /** 
@@ -170,26 +172,130 @@ class DirectJDKLog implements Log {
     
     private void log(Level level, String msg, Throwable ex) {
         if (logger.isLoggable(level)) {
-            String cname = "", method = "";
             if (logSource) {
-                // Hack (?) to get the stack trace.
-                Throwable dummyException = new Throwable();
-                StackTraceElement locations[] = dummyException.getStackTrace();
-                // Caller will be the third element
-                /* String */ cname = "unknown";
-                /* String */ method = "unknown";
-                if ( locations != null && locations.length > 2 ) {
-                    StackTraceElement caller = locations[2];
+                // the stack is captured (cheaply) but only walked when the
+                // source class/method is actually requested (e.g. formatter)
+                LogRecord record = new SourceLogRecord(level, msg, new Throwable());
+                record.setThrown(ex);
+                log(record);
+                return;
+            }
+            if (ex==null) {
+                logger.logp(level, "", "", msg);
+            } else {
+                logger.logp(level, "", "", msg, ex);
+            }
+        }
+    }
+
+    private void log(LogRecord record) {
+        // same as Logger.logp (and it's doLog) would fill in :
+        record.setLoggerName(logger.getName());
+        String bundleName = logger.getResourceBundleName();
+        if (bundleName != null) {
+            record.setResourceBundleName(bundleName);
+            record.setResourceBundle(logger.getResourceBundle());
+        }
+        logger.log(record);
+    }
+
+    /**
+     * A log record with the (caller) source resolved lazily.
+     */
+    static final class SourceLogRecord extends LogRecord {
+
+        private static final long serialVersionUID = 1L;
+
+        // caller will be the third element (log, info/warn/..., caller)
+        private static final int CALLER_DEPTH = 2;
+
+        private transient Throwable location;
+        private volatile boolean sourceResolved;
+
+        SourceLogRecord(Level level, String msg, Throwable location) {
+            super(level, msg);
+            this.location = location;
+        }
+
+        @Override
+        public String getSourceClassName() {
+            resolveSource();
+            return super.getSourceClassName();
+        }
+
+        @Override
+        public void setSourceClassName(String sourceClassName) {
+            resolveSource();
+            super.setSourceClassName(sourceClassName);
+        }
+
+        @Override
+        public String getSourceMethodName() {
+            resolveSource();
+            return super.getSourceMethodName();
+        }
+
+        @Override
+        public void setSourceMethodName(String sourceMethodName) {
+            resolveSource();
+            super.setSourceMethodName(sourceMethodName);
+        }
+
+        private void resolveSource() {
+            if (sourceResolved) return;
+            synchronized (this) {
+                if (sourceResolved) return;
+                String cname = "unknown", method = "unknown";
+                StackTraceElement caller = getStackTraceElement(location, CALLER_DEPTH);
+                if (caller != null) {
                     cname = caller.getClassName();
                     method = caller.getMethodName();
                 }
+                location = null;
+                sourceResolved = true;
+                super.setSourceClassName(cname);
+                super.setSourceMethodName(method);
             }
-            if (ex==null) {
-                logger.logp(level, cname, method, msg);
-            } else {
-                logger.logp(level, cname, method, msg, ex);
+        }
+
+        private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+            resolveSource(); out.defaultWriteObject();
+        }
+
+        private static final Object javaLangAccess;
+        private static final Method getStackTraceDepth;
+        private static final Method getStackTraceElement;
+
+        static {
+            Object access = null; Method depth = null, element = null;
+            try { // Java 6-8 avoid getStackTrace() creating all elements
+                Class<?> secrets = Class.forName("sun.misc.SharedSecrets");
+                Class<?> accessClass = Class.forName("sun.misc.JavaLangAccess");
+                depth = accessClass.getMethod("getStackTraceDepth", Throwable.class);
+                element = accessClass.getMethod("getStackTraceElement", Throwable.class, int.class);
+                access = secrets.getMethod("getJavaLangAccess").invoke(null);
+            } catch (Throwable t) {
+                access = null; // not available
             }
+            javaLangAccess = access;
+            getStackTraceDepth = depth;
+            getStackTraceElement = element;
         }
+
+        static StackTraceElement getStackTraceElement(Throwable location, int index) {
+            if (javaLangAccess != null) {
+                try {
+                    int depth = (Integer) getStackTraceDepth.invoke(javaLangAccess, location);
+                    if (depth <= index) return null;
+                    return (StackTraceElement) getStackTraceElement.invoke(javaLangAccess, location, index);
+                } catch (Exception e) {
+                    // fall back to getStackTrace()
+                }
+            }
+            StackTraceElement[] locations = location.getStackTrace();
+            return locations != null && locations.length > index ? locations[index] : null;
+        }
+
     }
 
     // for LogFactory
@@ -21,11 +21,13 @@ package org.apache.juli;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.sql.Timestamp;
+import java.util.Calendar;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.ErrorManager;
@@ -140,6 +142,15 @@ public class FileHandler
      * open log file.
      */
     private volatile String date = null;
+
+    /**
+     * The current date (yyyy-MM-dd) and the time range (in millis) it covers.
+     * The date is always written before the range bounds, readers are thus
+     * supposed to check the range (end) before reading the date.
+     */
+    private volatile String currentDate = null;
+    private volatile long currentDateStart = 0;
+    private volatile long currentDateEnd = 0;
     
     /**
      * The PrintWriter to which we are currently logging, if any.
@@ -166,22 +177,32 @@ public class FileHandler
             return;
         }
 
-        final String tsDate = rotatable ? 
-            new Timestamp(System.currentTimeMillis()).toString().substring(0, 10) : "";
+        publish(record, bufferSize == null || bufferSize < 0);
+    }
+
+    /**
+     * Format and write a (loggable) <tt>LogRecord</tt>.
+     *
+     * @param  record  description of the log event
+     * @param  flush   whether to flush the writer after the record is written
+     */
+    protected void publish(LogRecord record, boolean flush) {
+
+        final String tsDate = rotatable ? currentDate() : "";
         
         try {
             writerLock.readLock().lock();
             // If the date has changed, switch log files
             // Construct the timestamp we will use, if requested
             // (... if not rotatable this will happen only once)
-            if ( !tsDate.equals(date) ) {
+            if ( !tsDate.equals(date) || isRollOverNeeded() ) {
                 try {
                     // Update to writeLock before we switch
                     writerLock.readLock().unlock();
                     writerLock.writeLock().lock();
 
                     // Make sure another thread hasn't already done this
-                    if ( !tsDate.equals(date) ) {
+                    if ( !tsDate.equals(date) || isRollOverNeeded() ) {
                         closeWriter();
                         date = tsDate;
                         openWriter();
@@ -205,7 +226,7 @@ public class FileHandler
             try {
                 if (writer!=null) {
                     writer.write(result);
-                    if (bufferSize == null || bufferSize < 0) {
+                    if (flush) {
                         writer.flush();
                     }
                 } else {
@@ -224,6 +245,18 @@ public class FileHandler
     // -------------------------------------------------------- Private Methods
 
 
+    /**
+     * Whether the current log file should be closed (and re-opened) even
+     * though the date has not changed, called (on every record) while holding
+     * the writer's read lock.
+     *
+     * @return <code>false</code> by default
+     */
+    protected boolean isRollOverNeeded() {
+        return false;
+    }
+
+
     /**
      * Close the currently open log file (if any).
      */
@@ -275,8 +308,7 @@ public class FileHandler
      */
     private void configure() {
         
-        Timestamp ts = new Timestamp(System.currentTimeMillis());
-        date = ts.toString().substring(0, 10);
+        date = currentDate();
 
         String className = this.getClass().getName(); //allow classes to override
         
@@ -339,6 +371,53 @@ public class FileHandler
     }
 
     
+    /**
+     * The current date, only re-computed when the day boundary is crossed.
+     *
+     * @return current date formatted as yyyy-MM-dd
+     */
+    protected final String currentDate() {
+        final long now = System.currentTimeMillis();
+        if ( now >= currentDateEnd || now < currentDateStart ) {
+            updateCurrentDate(now);
+        }
+        return currentDate;
+    }
+
+    /**
+     * @param  millis  a time
+     * @return <code>true</code> if the given time is on the current date
+     */
+    protected final boolean isCurrentDate(final long millis) {
+        currentDate(); // make sure the range is up to date
+        return millis >= currentDateStart && millis < currentDateEnd;
+    }
+
+    /**
+     * @param  millis  a time
+     * @return the date (yyyy-MM-dd) for the given time
+     */
+    protected static String formatDate(final long millis) {
+        return new Timestamp(millis).toString().substring(0, 10);
+    }
+
+    private void updateCurrentDate(final long now) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(now);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        final long start = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        final long end = calendar.getTimeInMillis();
+
+        currentDate = formatDate(now);
+        currentDateStart = start;
+        currentDateEnd = end;
+    }
+
+
     private String getProperty(String name, String defaultValue) {
         String value = LogManager.getLogManager().getProperty(name);
         if (value == null) {
@@ -373,13 +452,7 @@ public class FileHandler
             if ( !checkDir(logFile.getParentFile()) ) {
                 writer = null; return;
             }
-            String encoding = getEncoding();
-            FileOutputStream fos = new FileOutputStream(logFile, true);
-            OutputStream os = (bufferSize != null && bufferSize > 0) ? 
-                    new BufferedOutputStream(fos, bufferSize) : fos;
-            writer = new PrintWriter(
-                    (encoding != null) ? new OutputStreamWriter(os, encoding)
-                                       : new OutputStreamWriter(os), false);
+            writer = createWriter(logFile);
             writer.write(getFormatter().getHead(this));
         } catch (Exception e) {
             reportError(null, e, ErrorManager.OPEN_FAILURE);
@@ -390,6 +463,23 @@ public class FileHandler
 
     }
 
+    /**
+     * Create a writer for the given log file, appending to it.
+     *
+     * @param  logFile  the log file
+     * @return the writer to use
+     * @throws IOException if the file could not be opened
+     */
+    protected PrintWriter createWriter(final File logFile) throws IOException {
+        String encoding = getEncoding();
+        FileOutputStream fos = new FileOutputStream(logFile, true);
+        OutputStream os = (bufferSize != null && bufferSize > 0) ? 
+                new BufferedOutputStream(fos, bufferSize) : fos;
+        return new PrintWriter(
+                (encoding != null) ? new OutputStreamWriter(os, encoding)
+                                   : new OutputStreamWriter(os), false);
+    }
+
     private boolean checkDir(final File dir) {
         if ( !dir.mkdirs() && !dir.isDirectory() ) {
             reportError("Unable to create [" + dir + "]", null, ErrorManager.OPEN_FAILURE);
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package rb.trinidad.logging;
+
+import java.text.DateFormat;
+import java.text.FieldPosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import static rb.trinidad.logging.LoggingHelpers.*;
+
+/**
+ * {@link DefaultFormatter} compared with the previous (locking) implementation.
+ *
+ * @author kares
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DefaultFormatterBenchmark {
+
+    static final String FORMAT = "yyyy-MM-dd HH:mm:ss Z"; // Trinidad's default
+
+    private DefaultFormatter formatter;
+    private Formatter lockingFormatter;
+
+    @Setup
+    public void setup() {
+        formatter = new DefaultFormatter(FORMAT);
+        lockingFormatter = new LockingFormatter(FORMAT);
+    }
+
+    @Benchmark
+    public String format() {
+        return formatter.format( newRecord() );
+    }
+
+    @Benchmark
+    public String formatLocking() {
+        return lockingFormatter.format( newRecord() );
+    }
+
+    static LogRecord newRecord() {
+        final LogRecord record = new LogRecord(Level.INFO,
+            "Started GET \"/\" for 127.0.0.1 at 2013-02-05 13:45:22 +0100\n");
+        record.setLoggerName("org.apache.catalina.core.ContainerBase.[Tomcat].[localhost].[/]");
+        return record;
+    }
+
+    /**
+     * DefaultFormatter as it used to be (shared date format under a lock).
+     */
+    static class LockingFormatter extends Formatter {
+
+        private final DateFormat dateFormat;
+        private final FieldPosition dummyPosition = new FieldPosition(0);
+
+        LockingFormatter(String format) {
+            this.dateFormat = new SimpleDateFormat(format);
+        }
+
+        @Override
+        public String format(final LogRecord record) {
+            String message = record.getMessage();
+            StringBuffer msg = new StringBuffer(32 + 2 + 7 + 1 + message.length());
+            Date millis = new Date(record.getMillis());
+            synchronized(dateFormat) {
+                dateFormat.format(millis, msg, dummyPosition);
+            }
+            msg.append(' ').append(record.getLevel().getName()).append(':');
+            msg.append(' ').append(formatMessage(record));
+            if ( ! endsWithLineSeparator(msg) ) msg.append(LINE_SEPARATOR);
+            final CharSequence thrown = LoggingHelpers.formatThrown(record.getThrown());
+            if ( thrown != null ) msg.append(thrown);
+            return msg.toString();
+        }
+
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package rb.trinidad.logging;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * {@link FileHandler#publish(LogRecord)} (with the default formatter) into
+ * a temporary directory, with and without (date) rotation and buffering.
+ *
+ * @author kares
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FileHandlerBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean rotatable;
+
+    @Param({ "-1", "8192" }) // -1 flushes on every record
+    public int bufferSize;
+
+    @Param({ "false", "true" })
+    public boolean async;
+
+    private File directory;
+    private FileHandler handler;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = File.createTempFile("trinidad-bench", "");
+        directory.delete(); directory.mkdir();
+
+        handler = new FileHandler(directory.getAbsolutePath(), "bench", ".log");
+        handler.setRotatable(rotatable);
+        handler.setBufferSize(bufferSize);
+        handler.setFormatter( new DefaultFormatter(DefaultFormatterBenchmark.FORMAT) );
+        handler.setOverflowPolicy(FileHandler.OverflowPolicy.BLOCK);
+        handler.setAsync(async);
+    }
+
+    @TearDown
+    public void tearDown() {
+        handler.close();
+        final File[] files = directory.listFiles();
+        if ( files != null ) {
+            for ( final File file : files ) file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public void publish() {
+        handler.publish( DefaultFormatterBenchmark.newRecord() );
+    }
+
+}
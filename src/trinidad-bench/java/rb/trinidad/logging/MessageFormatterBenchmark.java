@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package rb.trinidad.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * {@link MessageFormatter} (console) formatting of context and non-context
+ * logger records.
+ *
+ * @author kares
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageFormatterBenchmark {
+
+    private MessageFormatter formatter;
+
+    @Setup
+    public void setup() {
+        formatter = new MessageFormatter();
+    }
+
+    @Benchmark
+    public String formatContext() {
+        return formatter.format( newRecord("org.apache.catalina.core.ContainerBase.[Tomcat].[localhost].[/]") );
+    }
+
+    @Benchmark
+    public String formatOther() {
+        return formatter.format( newRecord("org.apache.catalina.core.StandardService") );
+    }
+
+    static LogRecord newRecord(final String loggerName) {
+        final LogRecord record = new LogRecord(Level.INFO,
+            "Started GET \"/\" for 127.0.0.1 at 2013-02-05 13:45:22 +0100\n");
+        record.setLoggerName(loggerName);
+        return record;
+    }
+
+}
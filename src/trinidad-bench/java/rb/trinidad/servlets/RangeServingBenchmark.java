@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package rb.trinidad.servlets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * (Multi-)Range requests against a local connector, served by Tomcat's
+ * DefaultServlet (the inherited path) compared to {@link DefaultServlet}.
+ *
+ * @author kares
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RangeServingBenchmark {
+
+    static final int FILE_SIZE = 32 * 1024 * 1024;
+
+    @Param({ "tomcat", "trinidad" })
+    public String servlet;
+
+    @Param({ "bytes=1048576-5242879", "bytes=0-1023,8388608-9437183,-1048576" })
+    public String range;
+
+    private File baseDir;
+    private Tomcat tomcat;
+    private String url;
+
+    @Setup
+    public void setup() throws Exception {
+        baseDir = File.createTempFile("trinidad-bench", "");
+        baseDir.delete(); baseDir.mkdir();
+        final File docBase = new File(baseDir, "app"); docBase.mkdir();
+        writeFile(new File(docBase, "media.bin"), FILE_SIZE);
+
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.getAbsolutePath());
+        // NOTE: BIO (no sendfile) to measure the copy path :
+        final Connector connector = new Connector("org.apache.coyote.http11.Http11Protocol");
+        connector.setPort(0);
+        tomcat.getService().addConnector(connector);
+        tomcat.setConnector(connector);
+
+        final Context context = tomcat.addContext("", docBase.getAbsolutePath());
+        final Wrapper wrapper = Tomcat.addServlet(context, "default",
+            "trinidad".equals(servlet) ? DefaultServlet.class.getName() :
+                org.apache.catalina.servlets.DefaultServlet.class.getName() );
+        wrapper.setLoadOnStartup(1);
+        context.addServletMapping("/", "default");
+        tomcat.start();
+
+        url = "http://localhost:" + connector.getLocalPort() + "/media.bin";
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        tomcat.stop();
+        tomcat.destroy();
+        delete(baseDir);
+    }
+
+    @Benchmark
+    public long get() throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty("Range", range);
+        if ( connection.getResponseCode() != 206 ) {
+            throw new IllegalStateException("unexpected status: " + connection.getResponseCode());
+        }
+        final InputStream input = connection.getInputStream();
+        final byte[] buffer = new byte[64 * 1024];
+        long total = 0; int read;
+        while ( ( read = input.read(buffer) ) != -1 ) total += read;
+        input.close();
+        return total;
+    }
+
+    private static void writeFile(final File file, final int size) throws IOException {
+        final byte[] chunk = new byte[1024 * 1024];
+        new Random(42).nextBytes(chunk);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            for ( int i = 0; i < size / chunk.length; i++ ) out.write(chunk);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static void delete(final File file) {
+        final File[] files = file.listFiles();
+        if ( files != null ) {
+            for ( final File child : files ) delete(child);
+        }
+        file.delete();
+    }
+
+}
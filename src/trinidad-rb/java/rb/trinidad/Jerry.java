@@ -47,6 +47,9 @@ import org.apache.catalina.startup.ContextConfig;
 import org.apache.catalina.startup.Tomcat;
 import org.apache.juli.logging.LogFactory;
 
+import rb.trinidad.valves.AccessLogValve;
+import rb.trinidad.valves.LatencyValve;
+
 /**
  * Jerry - Tomcat's little companion.
  *
@@ -79,6 +82,20 @@ public class Jerry extends Tomcat {
         return hostname;
     }
 
+    private boolean latencyStats = true;
+
+    public boolean isLatencyStats() {
+        return latencyStats;
+    }
+
+    /**
+     * @param latencyStats whether web-apps record (JMX exposed) request latencies
+     * @see LatencyValve
+     */
+    public void setLatencyStats(boolean latencyStats) {
+        this.latencyStats = latencyStats;
+    }
+
     @Override
     public void destroy() throws LifecycleException {
         if ( server != null ) server.destroy(); // super.destroy();
@@ -162,6 +179,8 @@ public class Jerry extends Tomcat {
         // prevent it from looking ( if it finds one - it'll have dup error )
         ctxCfg.setDefaultWebXml(noDefaultWebXmlPath());
 
+        if ( latencyStats ) ctx.getPipeline().addValve(new LatencyValve());
+
         if (host == null) {
             getHost().addChild(ctx);
         } else {
@@ -190,6 +209,19 @@ public class Jerry extends Tomcat {
         return ctx;
     }
 
+    /**
+     * Adds an access log valve to the given (or default) host's pipeline.
+     *
+     * @param host the host to log requests for (or null for the default host)
+     * @return the added valve (to be configured before the host starts)
+     */
+    public AccessLogValve addAccessLog(Host host) {
+        if ( host == null ) host = getHost();
+        final AccessLogValve valve = new AccessLogValve();
+        host.getPipeline().addValve(valve);
+        return valve;
+    }
+
     @Override
     protected void initBaseDir() {
         final String catalinaHome = System.getProperty(Globals.CATALINA_HOME_PROP);
@@ -23,11 +23,32 @@
 
 package rb.trinidad.context;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.catalina.Container;
 import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleState;
+import org.apache.catalina.Loader;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
 import org.apache.catalina.SessionIdGenerator;
 import org.apache.catalina.session.StandardManager;
+import org.apache.catalina.session.StandardSession;
+import org.apache.catalina.util.CustomObjectInputStream;
 import org.apache.catalina.util.SessionIdGeneratorBase;
 import org.apache.catalina.util.StandardSessionIdGenerator;
 import org.apache.juli.logging.Log;
@@ -41,6 +62,23 @@ import org.apache.tomcat.util.ExceptionUtils;
  * applications do not use the JavaSessionStore or access the Java session it
  * should be fine to only initialize on-demand.
  *
+ * Alternatively with {@link #setWarmUp(boolean)} the generator gets initialized
+ * on a background thread once started, the first session-creating request then
+ * only waits for the remaining work (or performs it if it did not start yet).
+ *
+ * Sessions idle for a while might (optionally) be moved off-heap, serialized
+ * into direct memory slabs (of a capped total size) and brought back on-heap
+ * once accessed again, see {@link #setOffHeapMaxSize(long)}.
+ *
+ * Sessions might be persisted (on stop) in a compact binary format instead of
+ * using Java serialization, see {@link #setBinarySnapshot(boolean)}.
+ *
+ * Session expiration is tracked using a (hierarchical) timing wheel, thus
+ * expiring sessions only visits the ones that might be due instead of all.
+ *
+ * On (rolling) reloads a new manager might {@link #takeover(Manager)} live
+ * sessions from the previous one without a serialization round-trip.
+ *
  * @see org.apache.catalina.session.ManagerBase
  * @see org.apache.catalina.session.StandardManager
  *
@@ -62,18 +100,81 @@ public class DefaultManager extends StandardManager {
         return getName() + "/1.0";
     }
 
+    private boolean warmUp = false;
+
+    public boolean isWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * @param warmUp whether to initialize the session id generator (seeding
+     * the secure random) on a background thread right after start
+     */
+    public void setWarmUp(boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    private volatile FutureTask<Void> sessionIdGeneratorInit;
+
     @Override
     protected String generateSessionId() {
-        if ( sessionIdGenerator == null ) { // we're lazy here
+        FutureTask<Void> init = sessionIdGeneratorInit;
+        if ( init == null ) { // we're lazy here
             synchronized(this) {
-                if ( sessionIdGenerator == null ) {
-                    initSessionIdGenerator();
+                init = sessionIdGeneratorInit;
+                if ( init == null ) {
+                    sessionIdGeneratorInit = init = newSessionIdGeneratorInit();
                 }
             }
         }
+        awaitSessionIdGeneratorInit(init);
         return super.generateSessionId();
     }
 
+    private FutureTask<Void> newSessionIdGeneratorInit() {
+        return new FutureTask<Void>(new Callable<Void>() {
+            public Void call() throws Exception {
+                initSessionIdGenerator(); return null;
+            }
+        });
+    }
+
+    private void awaitSessionIdGeneratorInit(final FutureTask<Void> init) {
+        init.run(); // no-op if (being) run by the warm-up thread
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    init.get(); return;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        catch (ExecutionException e) {
+            synchronized(this) { // retry initializing on next call
+                if ( sessionIdGeneratorInit == init ) sessionIdGeneratorInit = null;
+            }
+            DefaultManager.<RuntimeException>raise(e.getCause());
+        }
+        finally {
+            if ( interrupted ) Thread.currentThread().interrupt();
+        }
+    }
+
+    private void startSessionIdGeneratorWarmUp() {
+        final FutureTask<Void> init;
+        synchronized(this) {
+            if ( sessionIdGeneratorInit != null ) return;
+            sessionIdGeneratorInit = init = newSessionIdGeneratorInit();
+        }
+        final String name = getContainer() == null ? "" : getContainer().getName();
+        final Thread thread = new Thread(init, "Trinidad-SessionIdGenerator[" + name + "]");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     /**
      * Start this component and implement the requirements
      * of {@link org.apache.catalina.util.LifecycleBase#startInternal()}.
@@ -85,6 +186,10 @@ public class DefaultManager extends StandardManager {
     protected synchronized void startInternal() throws LifecycleException {
         // super.startInternal() :
 
+        if ( offHeapMaxSize > 0 ) { // before loading - to track idle sessions
+            offHeapSessions = new SessionSlabs(offHeapMaxSize, offHeapSlabSize);
+        }
+
         // Load unloaded sessions, if any
         try {
             load();
@@ -94,13 +199,650 @@ public class DefaultManager extends StandardManager {
             log().error(sm.getString("standardManager.managerLoad"), t);
         }
 
+        if ( warmUp ) startSessionIdGeneratorWarmUp();
+
         setState(LifecycleState.STARTING);
     }
 
-    //@Override
-    //protected synchronized void stopInternal() throws LifecycleException {
-    //    super.stopInternal();
-    //}
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+        final SessionSlabs offHeap = offHeapSessions;
+        if ( offHeap != null ) { // bring all back to be unloaded
+            promoteAll(offHeap);
+            offHeapSessions = null;
+            for ( final String id : offHeap.ids() ) { // failed to restore
+                log().warn("dropping off-heap session " + id + " (can not be restored)");
+                expiredSessions.incrementAndGet();
+            }
+            offHeap.clear();
+            idleWheel.clear();
+        }
+
+        super.stopInternal(); // stops and resets the sessionIdGenerator
+        sessionIdGeneratorInit = null;
+        for ( final ExpiryWheel wheel : expiryWheels() ) wheel.clear();
+    }
+
+    @Override
+    protected StandardSession getNewSession() {
+        return new DefaultSession(this);
+    }
+
+    // (binary) session persistence :
+
+    private boolean binarySnapshot = false;
+    private boolean snapshotCompress = false;
+    private int snapshotLoadThreads = Runtime.getRuntime().availableProcessors();
+
+    public boolean isBinarySnapshot() {
+        return binarySnapshot;
+    }
+
+    /**
+     * @param binarySnapshot whether to unload sessions in a binary format
+     * (instead of Java serialization), loading detects the format used
+     */
+    public void setBinarySnapshot(boolean binarySnapshot) {
+        this.binarySnapshot = binarySnapshot;
+    }
+
+    public boolean isSnapshotCompress() {
+        return snapshotCompress;
+    }
+
+    /**
+     * @param snapshotCompress whether to GZip the (binary) session snapshot
+     */
+    public void setSnapshotCompress(boolean snapshotCompress) {
+        this.snapshotCompress = snapshotCompress;
+    }
+
+    public int getSnapshotLoadThreads() {
+        return snapshotLoadThreads;
+    }
+
+    /**
+     * @param snapshotLoadThreads threads used to decode a (binary) snapshot
+     */
+    public void setSnapshotLoadThreads(int snapshotLoadThreads) {
+        this.snapshotLoadThreads = snapshotLoadThreads;
+    }
+
+    @Override
+    protected void doLoad() throws ClassNotFoundException, IOException {
+        final File file = file();
+        if ( file == null || ! file.exists() ) return;
+
+        final long start = System.currentTimeMillis();
+        final int count = SessionSnapshot.read(file, getClassLoader(), snapshotLoadThreads,
+            new SessionSnapshot.Callback() {
+                public DefaultSession newSession() {
+                    return (DefaultSession) getNewSession();
+                }
+                public void restored(final DefaultSession session) {
+                    session.setManager(DefaultManager.this);
+                    sessions.put(session.getIdInternal(), session);
+                    session.restored();
+                    if ( session.isValid() ) scheduleExpiry(session);
+                }
+            }
+        );
+        if ( count < 0 ) { // not a binary snapshot
+            super.doLoad(); // sessions put directly into the map
+            for ( final Session session : findSessions() ) scheduleExpiry(session);
+            return;
+        }
+        synchronized(this) { sessionCounter += count; }
+        if ( log().isDebugEnabled() ) {
+            log().debug("loaded " + count + " sessions from " + file +
+                " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        file.delete();
+    }
+
+    @Override
+    protected void doUnload() throws IOException {
+        if ( ! binarySnapshot ) {
+            super.doUnload(); return;
+        }
+        final File file = file();
+        if ( file == null ) return;
+
+        final Session[] all = findSessions();
+        for ( final Session session : all ) {
+            if ( ! (session instanceof DefaultSession) ) {
+                // e.g. taken over from another manager, the snapshot format
+                // only handles our own sessions - use Java serialization :
+                log().debug("unloading using Java serialization (due " + session.getClass().getName() + ")");
+                super.doUnload(); return;
+            }
+        }
+
+        final List<DefaultSession> list = new ArrayList<DefaultSession>(all.length);
+        for ( final Session session : all ) {
+            ((DefaultSession) session).passivate();
+            list.add((DefaultSession) session);
+        }
+        if ( list.isEmpty() ) {
+            if ( file.exists() ) file.delete();
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        SessionSnapshot.write(file, list, snapshotCompress);
+        if ( log().isDebugEnabled() ) {
+            log().debug("unloaded " + list.size() + " sessions into " + file +
+                " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        // expire all the sessions we've just written
+        for ( final DefaultSession session : list ) {
+            try {
+                session.expire(false);
+            }
+            finally {
+                session.recycle();
+            }
+        }
+    }
+
+    // session takeover :
+
+    /**
+     * Takes over (live) sessions from a previous manager, of a context being
+     * replaced e.g. during a rolling reload. Should happen before the previous
+     * manager stops (and unloads its sessions).
+     *
+     * Session objects are moved as they are, only attribute values that were
+     * loaded by the previous web-app class loader (or might hold such values
+     * e.g. collections) get re-bound - serialized and de-serialized using this
+     * manager's class loader. Attributes failing to re-bind are dropped.
+     *
+     * @param previous the (old) manager
+     * @return number of sessions taken over
+     */
+    public int takeover(final Manager previous) {
+        if ( previous == null || previous == this ) return 0;
+        if ( previous instanceof DefaultManager ) {
+            final SessionSlabs offHeap = ((DefaultManager) previous).offHeapSessions;
+            if ( offHeap != null ) ((DefaultManager) previous).promoteAll(offHeap);
+        }
+
+        final Container previousContainer = previous.getContainer();
+        final Loader previousLoader = previousContainer == null ? null : previousContainer.getLoader();
+        final ClassLoader previousClassLoader = previousLoader == null ? null : previousLoader.getClassLoader();
+        final ClassLoader classLoader = getClassLoader();
+
+        int count = 0;
+        for ( final Session session : previous.findSessions() ) {
+            if ( ! (session instanceof StandardSession) ) continue;
+            final StandardSession standard = (StandardSession) session;
+            if ( ! standard.isValid() ) continue;
+
+            previous.remove(standard);
+            standard.passivate();
+            standard.setManager(this);
+            if ( previousClassLoader != null && previousClassLoader != classLoader ) {
+                rebindAttributes(standard, previousClassLoader, classLoader);
+            }
+            sessions.put(standard.getIdInternal(), standard);
+            standard.activate();
+            scheduleExpiry(standard);
+            count++;
+        }
+        synchronized(this) { sessionCounter += count; }
+        return count;
+    }
+
+    private void rebindAttributes(final StandardSession session,
+        final ClassLoader previousClassLoader, final ClassLoader classLoader) {
+        final Enumeration<String> names = session.getAttributeNames();
+        while ( names.hasMoreElements() ) {
+            final String name = names.nextElement();
+            final Object value = session.getAttribute(name);
+            if ( value == null || ! needsRebind(value, previousClassLoader) ) continue;
+            try {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+                final ObjectOutputStream out = new ObjectOutputStream(bytes);
+                out.writeObject(value);
+                out.close();
+                final ObjectInputStream in = new CustomObjectInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray()), classLoader
+                );
+                try {
+                    session.setAttribute(name, in.readObject(), false);
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch (Exception e) { // NotSerializableException, ClassNotFoundException
+                log().warn("dropping session attribute " + name + " (of " +
+                    session.getIdInternal() + ") failed to re-bind: " + e);
+                session.removeAttribute(name, false);
+            }
+        }
+    }
+
+    private static boolean needsRebind(final Object value, final ClassLoader previousClassLoader) {
+        if ( value instanceof String || value instanceof Number ||
+             value instanceof Boolean || value instanceof Character ) {
+            return false; // NOTE: assuming no web-app Number sub-classes
+        }
+        Class<?> klass = value.getClass();
+        while ( klass.isArray() ) klass = klass.getComponentType();
+        if ( klass.isPrimitive() ) return false;
+        if ( value instanceof Collection || value instanceof Map || value.getClass().isArray() ) {
+            return true; // might hold web-app objects
+        }
+        for ( ClassLoader loader = klass.getClassLoader(); loader != null; loader = loader.getParent() ) {
+            if ( loader == previousClassLoader ) return true;
+        }
+        return false;
+    }
+
+    // session expiration :
+
+    private final ExpiryWheel expiryWheel = new ExpiryWheel(1000, System.currentTimeMillis());
+
+    @Override
+    public void add(final Session session) {
+        super.add(session);
+        scheduleExpiry(session);
+    }
+
+    @Override
+    public void remove(final Session session, final boolean update) {
+        super.remove(session, update);
+        cancelExpiry(session);
+    }
+
+    /**
+     * @param session
+     * @return the wheel tracking the session's expiration
+     */
+    ExpiryWheel expiryWheel(final StandardSession session) {
+        return expiryWheel;
+    }
+
+    ExpiryWheel[] expiryWheels() {
+        return new ExpiryWheel[] { expiryWheel };
+    }
+
+    /**
+     * (Re-)schedule the session's expiration, happens when it's added but also
+     * on {@link Session#setMaxInactiveInterval(int)} (with a DefaultSession).
+     * @param session
+     */
+    void scheduleExpiry(final Session session) {
+        if ( ! (session instanceof StandardSession) ) return;
+        final StandardSession standard = (StandardSession) session;
+        final String id = standard.getIdInternal();
+        if ( id == null || sessions.get(id) != standard ) return; // not (yet) managed
+        final int maxInactive = standard.getMaxInactiveInterval();
+        if ( maxInactive > 0 ) {
+            // last accessed time (not this accessed) - never later than isValid()
+            expiryWheel(standard).schedule(standard, standard.getLastAccessedTimeInternal() + maxInactive * 1000L);
+        }
+        else {
+            expiryWheel(standard).cancel(standard);
+        }
+        if ( offHeapSessions != null && standard instanceof DefaultSession ) {
+            idleWheel.schedule(standard, standard.getLastAccessedTimeInternal() + offHeapIdle * 1000L);
+        }
+    }
+
+    final void cancelExpiry(final Session session) {
+        if ( session instanceof StandardSession ) {
+            expiryWheel((StandardSession) session).cancel((StandardSession) session);
+            idleWheel.cancel((StandardSession) session);
+        }
+    }
+
+    private int expireDue(final long now) {
+        int expired = 0;
+        for ( final ExpiryWheel wheel : expiryWheels() ) {
+            expired += expireDue(wheel, now);
+        }
+        return expired;
+    }
+
+    private int expireDue(final ExpiryWheel wheel, final long now) {
+        int expired = 0;
+        for ( final StandardSession session : wheel.advance(now) ) {
+            final String id = session.getIdInternal();
+            // removed, moved off-heap or re-added under a new id meanwhile :
+            if ( id == null || sessions.get(id) != session ) continue;
+            if ( session.isValid() ) { // accessed since scheduled (or in use)
+                scheduleExpiry(session);
+            }
+            else expired++; // isValid() did expire it
+        }
+        return expired;
+    }
+
+    // off-heap session storage :
+
+    private long offHeapMaxSize = 0; // disabled
+    private int offHeapSlabSize = 1024 * 1024;
+    private int offHeapIdle = 60; // seconds
+    private int maxHeapSessions = -1;
+
+    private volatile SessionSlabs offHeapSessions;
+    // (on-heap) sessions scheduled by the time they become idle
+    private final ExpiryWheel idleWheel = new ExpiryWheel(1000, System.currentTimeMillis());
+
+    public long getOffHeapMaxSize() {
+        return offHeapMaxSize;
+    }
+
+    /**
+     * @param offHeapMaxSize max memory (in bytes) for storing idle sessions
+     * off-heap, a value of 0 (the default) disables off-heap storage
+     */
+    public void setOffHeapMaxSize(long offHeapMaxSize) {
+        this.offHeapMaxSize = offHeapMaxSize;
+    }
+
+    public int getOffHeapSlabSize() {
+        return offHeapSlabSize;
+    }
+
+    /**
+     * @param offHeapSlabSize size of a single (allocated) off-heap slab,
+     * sessions larger than this are never moved off-heap
+     */
+    public void setOffHeapSlabSize(int offHeapSlabSize) {
+        this.offHeapSlabSize = offHeapSlabSize;
+    }
+
+    public int getOffHeapIdle() {
+        return offHeapIdle;
+    }
+
+    /**
+     * @param offHeapIdle seconds a session needs to stay idle to be moved off-heap
+     */
+    public void setOffHeapIdle(int offHeapIdle) {
+        this.offHeapIdle = offHeapIdle;
+    }
+
+    public int getMaxHeapSessions() {
+        return maxHeapSessions;
+    }
+
+    /**
+     * @param maxHeapSessions max number of (hot) sessions kept on-heap when
+     * off-heap storage is enabled, least recently accessed ones are moved
+     * off-heap (even if not idle) when over the limit, -1 for no limit
+     */
+    public void setMaxHeapSessions(int maxHeapSessions) {
+        this.maxHeapSessions = maxHeapSessions;
+    }
+
+    /**
+     * @return number of sessions currently stored off-heap
+     */
+    public int getOffHeapSessionCount() {
+        final SessionSlabs offHeap = offHeapSessions;
+        return offHeap == null ? 0 : offHeap.size();
+    }
+
+    /**
+     * @return bytes used by sessions stored off-heap
+     */
+    public long getOffHeapUsedSize() {
+        final SessionSlabs offHeap = offHeapSessions;
+        return offHeap == null ? 0 : offHeap.getUsedSize();
+    }
+
+    /**
+     * @return allocated off-heap memory (in bytes)
+     */
+    public long getOffHeapAllocatedSize() {
+        final SessionSlabs offHeap = offHeapSessions;
+        return offHeap == null ? 0 : offHeap.getAllocatedSize();
+    }
+
+    @Override
+    public Session findSession(final String id) throws IOException {
+        final Session session = super.findSession(id);
+        if ( session == null && id != null ) {
+            final SessionSlabs offHeap = offHeapSessions;
+            if ( offHeap != null && offHeap.contains(id) ) {
+                try {
+                    return promote(offHeap, id);
+                }
+                catch (IOException e) { // still stored (expired later or on stop)
+                    log().warn("failed to restore off-heap session " + id, e);
+                    throw e;
+                }
+            }
+        }
+        return session;
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return super.getActiveSessions() + getOffHeapSessionCount();
+    }
+
+    @Override
+    public void processExpires() {
+        final long start = System.currentTimeMillis();
+        final int expired = expireDue(start);
+
+        final SessionSlabs offHeap = offHeapSessions;
+        if ( offHeap != null ) {
+            expireOffHeap(offHeap, start);
+            moveOffHeap(offHeap, start);
+        }
+        final long end = System.currentTimeMillis();
+        if ( log().isDebugEnabled() ) {
+            log().debug("expired " + expired + " sessions in " + (end - start) + "ms");
+        }
+        processingTime += end - start;
+    }
+
+    private void expireOffHeap(final SessionSlabs offHeap, final long now) {
+        for ( final String id : offHeap.expired(now) ) {
+            final byte[] data; final Object cached;
+            synchronized (offHeap) {
+                if ( sessions.containsKey(id) ) continue; // promoted
+                cached = offHeap.cached(id);
+                data = offHeap.take(id);
+            }
+            if ( data == null ) continue;
+            try {
+                if ( cached instanceof DefaultSession ) { // not yet collected
+                    ((DefaultSession) cached).movedBack();
+                    ((DefaultSession) cached).expire(true);
+                }
+                else readSession(data).expire(true);
+            }
+            catch (IOException e) {
+                log().warn("failed to expire off-heap session " + id, e);
+                expiredSessions.incrementAndGet();
+            }
+        }
+    }
+
+    private void moveOffHeap(final SessionSlabs offHeap, final long now) {
+        final long idle = offHeapIdle * 1000L;
+        for ( final StandardSession session : idleWheel.advance(now) ) {
+            if ( ! isManaged(session) ) continue;
+            final long due = session.getLastAccessedTimeInternal() + idle;
+            if ( due > now ) { // accessed since scheduled
+                idleWheel.schedule(session, due); continue;
+            }
+            // in use, not serializable or no room - retry once idle again
+            if ( ! moveOffHeap(offHeap, (DefaultSession) session) ) {
+                idleWheel.schedule(session, now + idle);
+            }
+        }
+
+        if ( maxHeapSessions < 0 ) return;
+        // move (least recently accessed) sessions when over the hot limit :
+        int excess = sessions.size() - maxHeapSessions;
+        int budget = 2 * idleWheel.size(); // (re-)visit each session at most twice
+        List<StandardSession> retry = null;
+        while ( excess > 0 && budget > 0 ) {
+            final List<ExpiryWheel.Entry> earliest = idleWheel.pollEarliest(Math.min(excess, budget));
+            if ( earliest.isEmpty() ) break;
+            budget -= earliest.size();
+            for ( final ExpiryWheel.Entry entry : earliest ) {
+                final StandardSession session = entry.session;
+                if ( ! isManaged(session) ) continue;
+                final long due = session.getLastAccessedTimeInternal() + idle;
+                if ( due > entry.expiry ) { // accessed since scheduled, re-order
+                    idleWheel.schedule(session, due); continue;
+                }
+                if ( moveOffHeap(offHeap, (DefaultSession) session) ) {
+                    excess--; continue;
+                }
+                if ( retry == null ) retry = new ArrayList<StandardSession>();
+                retry.add(session);
+            }
+        }
+        if ( retry != null ) {
+            for ( final StandardSession session : retry ) {
+                idleWheel.schedule(session, session.getLastAccessedTimeInternal() + idle);
+            }
+        }
+    }
+
+    private boolean isManaged(final StandardSession session) {
+        final String id = session.getIdInternal();
+        return id != null && sessions.get(id) == session;
+    }
+
+    private boolean moveOffHeap(final SessionSlabs offHeap, final DefaultSession session) {
+        // being accessed (by a request) right now :
+        if ( ! session.beginMove() ) return false;
+
+        final String id = session.getIdInternal();
+        session.passivate();
+        final byte[] data;
+        try {
+            data = writeSession(session);
+        }
+        catch (IOException e) { // e.g. NotSerializableException
+            log().debug("keeping session " + id + " on-heap: " + e);
+            session.abortMove();
+            session.activate();
+            return false;
+        }
+
+        final int maxInactive = session.getMaxInactiveInterval();
+        final long expiry = maxInactive > 0 ?
+            session.getLastAccessedTimeInternal() + maxInactive * 1000L : Long.MAX_VALUE;
+        synchronized (offHeap) {
+            if ( ! offHeap.put(id, data, expiry, session) ) { // full
+                session.abortMove();
+                session.activate();
+                return false;
+            }
+            // accessed (or invalidated) while we were serializing, accesses from
+            // here on (the session being MOVED) wait for us and revive it
+            if ( ! session.commitMove() || ! session.isValidFlag() ) {
+                offHeap.remove(id);
+                session.abortMove(); session.movedBack();
+                session.activate();
+                return false;
+            }
+            sessions.remove(id);
+            cancelExpiry(session);
+        }
+        return true;
+    }
+
+    /**
+     * Brings back a (moved) session object that is being accessed.
+     * @param session
+     */
+    void revive(final DefaultSession session) {
+        final SessionSlabs offHeap = offHeapSessions;
+        if ( offHeap == null ) return; // stopped (all restored)
+        synchronized (offHeap) {
+            if ( session.getAccessState() != DefaultSession.MOVED ) return; // promoted
+            final String id = session.getIdInternal();
+            // unless expired (off-heap) meanwhile use the live object :
+            if ( offHeap.remove(id) ) {
+                sessions.put(id, session);
+                session.movedBack();
+                session.activate();
+                scheduleExpiry(session);
+            }
+            else session.movedBack();
+        }
+    }
+
+    private void promoteAll(final SessionSlabs offHeap) {
+        for ( final String id : offHeap.ids() ) {
+            try {
+                promote(offHeap, id);
+            }
+            catch (IOException e) { // still stored (expired later or on stop)
+                log().warn("failed to restore off-heap session " + id, e);
+            }
+        }
+    }
+
+    private Session promote(final SessionSlabs offHeap, final String id) throws IOException {
+        synchronized (offHeap) {
+            Session session = sessions.get(id);
+            if ( session != null ) return session;
+            final StandardSession standard;
+            final Object cached = offHeap.cached(id);
+            if ( cached instanceof DefaultSession ) { // not yet collected
+                standard = (DefaultSession) cached;
+                ((DefaultSession) cached).movedBack();
+            }
+            else {
+                final byte[] data = offHeap.get(id);
+                if ( data == null ) return null;
+                // bytes are kept (till expired) if reading fails
+                standard = readSession(data);
+            }
+            offHeap.remove(id);
+            sessions.put(id, standard);
+            standard.activate();
+            scheduleExpiry(standard);
+            return standard;
+        }
+    }
+
+    private byte[] writeSession(final StandardSession session) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        session.writeObjectData(out);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private StandardSession readSession(final byte[] data) throws IOException {
+        final StandardSession session = (StandardSession) createEmptySession();
+        final ObjectInputStream in = new CustomObjectInputStream(
+            new ByteArrayInputStream(data), getClassLoader()
+        );
+        try {
+            session.readObjectData(in);
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException("failed to read session data", e);
+        }
+        finally {
+            in.close();
+        }
+        session.setManager(this);
+        return session;
+    }
+
+    private ClassLoader getClassLoader() {
+        final Loader loader = getContainer() == null ? null : getContainer().getLoader();
+        if ( loader != null && loader.getClassLoader() != null ) return loader.getClassLoader();
+        return Thread.currentThread().getContextClassLoader();
+    }
 
     private void initSessionIdGenerator() {
         // ManagerBase#startInternal :
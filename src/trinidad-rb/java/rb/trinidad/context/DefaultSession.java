@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package rb.trinidad.context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.SessionListener;
+import org.apache.catalina.session.StandardSession;
+import org.apache.catalina.util.CustomObjectInputStream;
+
+/**
+ * A standard session with a compact binary (snapshot) encoding.
+ *
+ * Common attribute types (strings, numbers, booleans and byte arrays) are
+ * written directly, other values fallback to Java serialization (using a
+ * single object stream per session).
+ *
+ * @see SessionSnapshot
+ *
+ * @author kares
+ */
+public class DefaultSession extends StandardSession {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final byte END = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte BYTES = 6;
+    private static final byte OBJECTS = 7;
+
+    // off-heap move coordination, a state >= 0 is the number of (in-flight)
+    // accesses, a session might only be moved (off-heap) while not accessed
+    static final int MOVING = -1;
+    static final int MOVED = -2;
+
+    private static final AtomicIntegerFieldUpdater<DefaultSession> ACCESS_STATE =
+        AtomicIntegerFieldUpdater.newUpdater(DefaultSession.class, "accessState");
+
+    private transient volatile int accessState = 0;
+
+    public DefaultSession(Manager manager) {
+        super(manager);
+    }
+
+    /**
+     * Accessing a session cancels an in-progress off-heap move, accessing a
+     * session that has been moved brings it back (the same object) on-heap.
+     */
+    @Override
+    public void access() {
+        for (;;) {
+            final int state = accessState;
+            if ( state == MOVED ) {
+                if ( manager instanceof DefaultManager ) {
+                    ((DefaultManager) manager).revive(this);
+                }
+                ACCESS_STATE.compareAndSet(this, MOVED, 0);
+                continue;
+            }
+            if ( ACCESS_STATE.compareAndSet(this, state, state == MOVING ? 1 : state + 1) ) break;
+        }
+        super.access();
+    }
+
+    @Override
+    public void endAccess() {
+        for (;;) {
+            final int state = accessState;
+            if ( state <= 0 || ACCESS_STATE.compareAndSet(this, state, state - 1) ) break;
+        }
+        super.endAccess();
+    }
+
+    int getAccessState() {
+        return accessState;
+    }
+
+    /**
+     * @return true if the session is not being accessed and might be moved
+     */
+    boolean beginMove() {
+        return ACCESS_STATE.compareAndSet(this, 0, MOVING);
+    }
+
+    /**
+     * @return false if the session has been accessed since the move begun
+     */
+    boolean commitMove() {
+        return ACCESS_STATE.compareAndSet(this, MOVING, MOVED);
+    }
+
+    void abortMove() {
+        ACCESS_STATE.compareAndSet(this, MOVING, 0);
+    }
+
+    /**
+     * The (moved) session is back on-heap (or gone).
+     */
+    void movedBack() {
+        ACCESS_STATE.compareAndSet(this, MOVED, 0);
+    }
+
+    /**
+     * @return the valid flag (without checking for expiration)
+     */
+    boolean isValidFlag() {
+        return isValid;
+    }
+
+    @Override
+    public void setMaxInactiveInterval(int interval) {
+        super.setMaxInactiveInterval(interval);
+        if ( manager instanceof DefaultManager ) {
+            ((DefaultManager) manager).scheduleExpiry(this);
+        }
+    }
+
+    /**
+     * Writes the session state, non-serializable attributes are removed
+     * (same as with {@link #writeObjectData(java.io.ObjectOutputStream)}).
+     * @param out
+     * @throws IOException
+     */
+    void writeSnapshot(final DataOutputStream out) throws IOException {
+        out.writeUTF(id);
+        out.writeLong(creationTime);
+        out.writeLong(lastAccessedTime);
+        out.writeLong(thisAccessedTime);
+        out.writeInt(maxInactiveInterval);
+        out.writeBoolean(isNew);
+        out.writeBoolean(isValid);
+
+        List<String> objectNames = null;
+        List<Object> objectValues = null;
+        for ( final String name : keys() ) {
+            final Object value = attributes.get(name);
+            if ( value == null ) continue;
+            if ( ! (value instanceof Serializable) || exclude(name) ) {
+                removeAttributeInternal(name, true); continue;
+            }
+            if ( ! writeAttribute(out, name, value) ) {
+                if ( objectNames == null ) {
+                    objectNames = new ArrayList<String>(); objectValues = new ArrayList<Object>();
+                }
+                objectNames.add(name); objectValues.add(value);
+            }
+        }
+        if ( objectNames != null ) {
+            final byte[] objects = writeObjects(objectNames, objectValues);
+            if ( ! objectNames.isEmpty() ) {
+                out.writeByte(OBJECTS);
+                out.writeInt(objectNames.size());
+                writeBytes(out, objects);
+            }
+        }
+        out.writeByte(END);
+    }
+
+    private static boolean writeAttribute(final DataOutputStream out, final String name, final Object value)
+        throws IOException {
+        final Class<?> klass = value.getClass();
+        if ( klass == String.class ) {
+            out.writeByte(STRING); out.writeUTF(name);
+            writeBytes(out, ((String) value).getBytes("UTF-8"));
+        }
+        else if ( klass == Integer.class ) {
+            out.writeByte(INTEGER); out.writeUTF(name);
+            out.writeInt((Integer) value);
+        }
+        else if ( klass == Long.class ) {
+            out.writeByte(LONG); out.writeUTF(name);
+            out.writeLong((Long) value);
+        }
+        else if ( klass == Boolean.class ) {
+            out.writeByte(BOOLEAN); out.writeUTF(name);
+            out.writeBoolean((Boolean) value);
+        }
+        else if ( klass == Double.class ) {
+            out.writeByte(DOUBLE); out.writeUTF(name);
+            out.writeDouble((Double) value);
+        }
+        else if ( klass == byte[].class ) {
+            out.writeByte(BYTES); out.writeUTF(name);
+            writeBytes(out, (byte[]) value);
+        }
+        else {
+            return false; // Java serialized (with other objects)
+        }
+        return true;
+    }
+
+    // all (other) values get serialized within a single object stream,
+    // attributes failing to serialize are logged and left out
+    private byte[] writeObjects(final List<String> names, final List<Object> values)
+        throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        for (;;) {
+            bytes.reset();
+            int i = 0;
+            try {
+                final ObjectOutputStream oos = new ObjectOutputStream(bytes);
+                for ( ; i < names.size(); i++ ) {
+                    oos.writeObject(names.get(i));
+                    oos.writeObject(values.get(i));
+                }
+                oos.close();
+                return bytes.toByteArray();
+            }
+            catch (NotSerializableException e) {
+                manager.getContainer().getLogger().warn(
+                    sm.getString("standardSession.notSerializable", names.get(i), id), e
+                );
+                names.remove(i); values.remove(i);
+            }
+        }
+    }
+
+    private static void writeBytes(final DataOutputStream out, final byte[] bytes)
+        throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads the session state (as written by {@link #writeSnapshot(DataOutputStream)}).
+     * @param in
+     * @param classLoader used to load (Java serialized) attribute values
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    void readSnapshot(final DataInputStream in, final ClassLoader classLoader)
+        throws IOException, ClassNotFoundException {
+        authType = null;
+        principal = null;
+        id = in.readUTF();
+        creationTime = in.readLong();
+        lastAccessedTime = in.readLong();
+        thisAccessedTime = in.readLong();
+        maxInactiveInterval = in.readInt();
+        isNew = in.readBoolean();
+        final boolean valid = in.readBoolean();
+
+        if ( attributes == null ) attributes = new ConcurrentHashMap<String, Object>();
+        byte tag;
+        while ( ( tag = in.readByte() ) != END ) {
+            if ( tag == OBJECTS ) {
+                readObjects(in, classLoader); continue;
+            }
+            final String name = in.readUTF();
+            final Object value;
+            switch ( tag ) {
+                case STRING : value = new String(readBytes(in), "UTF-8"); break;
+                case INTEGER : value = in.readInt(); break;
+                case LONG : value = in.readLong(); break;
+                case BOOLEAN : value = in.readBoolean(); break;
+                case DOUBLE : value = in.readDouble(); break;
+                case BYTES : value = readBytes(in); break;
+                default :
+                    throw new IOException("unexpected attribute tag: " + tag);
+            }
+            attributes.put(name, value);
+        }
+        isValid = valid;
+
+        if ( listeners == null ) listeners = new ArrayList<SessionListener>();
+        if ( notes == null ) notes = new Hashtable<String, Object>();
+    }
+
+    private void readObjects(final DataInputStream in, final ClassLoader classLoader)
+        throws IOException, ClassNotFoundException {
+        final int count = in.readInt();
+        final ObjectInputStream ois = new CustomObjectInputStream(
+            new ByteArrayInputStream(readBytes(in)), classLoader
+        );
+        try {
+            for ( int i = 0; i < count; i++ ) {
+                final String name = (String) ois.readObject();
+                attributes.put(name, ois.readObject());
+            }
+        }
+        finally {
+            ois.close();
+        }
+    }
+
+    private static byte[] readBytes(final DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Activates a restored session (already added to its manager), sessions
+     * restored as invalid are expired.
+     */
+    void restored() {
+        activate();
+        if ( ! isValidInternal() ) {
+            setValid(true);
+            expire();
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package rb.trinidad.context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.catalina.session.StandardSession;
+
+/**
+ * A hierarchical timing wheel for session expiration.
+ *
+ * Sessions are placed into a slot by their (possible) expiry time, advancing
+ * the wheel only visits slots that became due (and cascades the ones of higher
+ * levels down) thus the cost is proportional to the number of due sessions
+ * (not the total number of sessions).
+ *
+ * Accessing a session does not re-schedule it, a due session is checked and
+ * re-scheduled if it has been accessed meanwhile.
+ *
+ * @author kares
+ */
+public final class ExpiryWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4; // 64^4 ticks (~ 194 days with 1s ticks)
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    static final class Entry {
+
+        final StandardSession session;
+        long expiry; // as scheduled (millis)
+        long tick; // due tick
+        Set<Entry> slot;
+
+        Entry(final StandardSession session) {
+            this.session = session;
+        }
+
+    }
+
+    private final long tickMillis;
+    @SuppressWarnings("unchecked")
+    private final Set<Entry>[][] wheel = new Set[LEVELS][SLOTS];
+    private final Map<StandardSession, Entry> entries = new HashMap<StandardSession, Entry>();
+    private long currentTick;
+
+    public ExpiryWheel(final long tickMillis, final long now) {
+        if ( tickMillis <= 0 ) throw new IllegalArgumentException("tick: " + tickMillis);
+        this.tickMillis = tickMillis;
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * (Re-)schedules a session to be due at the given time.
+     * @param session
+     * @param expiry expiry time (in millis)
+     */
+    public synchronized void schedule(final StandardSession session, final long expiry) {
+        Entry entry = entries.get(session);
+        if ( entry == null ) {
+            entries.put(session, entry = new Entry(session));
+        }
+        else {
+            entry.slot.remove(entry);
+        }
+        entry.expiry = expiry;
+        // round up - never report a session as due before it expires
+        entry.tick = expiry / tickMillis + ( expiry % tickMillis == 0 ? 0 : 1 );
+        place(entry);
+    }
+
+    /**
+     * @param session
+     * @return true if the session was scheduled
+     */
+    public synchronized boolean cancel(final StandardSession session) {
+        final Entry entry = entries.remove(session);
+        if ( entry == null ) return false;
+        entry.slot.remove(entry);
+        return true;
+    }
+
+    /**
+     * Advances the wheel (up to the given time), collecting all due sessions.
+     * Returned sessions are no longer scheduled.
+     * @param now
+     * @return due sessions
+     */
+    public synchronized List<StandardSession> advance(final long now) {
+        final long nowTick = now / tickMillis;
+        List<StandardSession> due = null;
+        while ( currentTick < nowTick ) {
+            final long tick = ++currentTick;
+            // cascade down higher level slots once lower levels wrap around
+            for ( int level = 1; level < LEVELS; level++ ) {
+                if ( ( ( tick >>> ( SLOT_BITS * (level - 1) ) ) & SLOT_MASK ) != 0 ) break;
+                cascade(level, (int) ( tick >>> ( SLOT_BITS * level ) ) & SLOT_MASK);
+            }
+            final Set<Entry> slot = wheel[0][(int) tick & SLOT_MASK];
+            if ( slot == null || slot.isEmpty() ) continue;
+            if ( due == null ) due = new ArrayList<StandardSession>();
+            final Entry[] drained = slot.toArray(new Entry[slot.size()]);
+            slot.clear();
+            for ( final Entry entry : drained ) {
+                if ( entry.tick > tick ) { // clamped (too far) - not yet due
+                    place(entry); continue;
+                }
+                entries.remove(entry.session);
+                due.add(entry.session);
+            }
+        }
+        if ( due == null ) return Collections.emptyList();
+        return due;
+    }
+
+    /**
+     * Removes (up to max) sessions scheduled the earliest, ordering is only
+     * approximate (by slot) - slots of higher levels cover more ticks.
+     * @param max
+     * @return removed entries (with their due tick)
+     */
+    synchronized List<Entry> pollEarliest(final int max) {
+        if ( max <= 0 || entries.isEmpty() ) return Collections.emptyList();
+        final List<Entry> polled = new ArrayList<Entry>(Math.min(max, entries.size()));
+        for ( int level = 0; level < LEVELS && polled.size() < max; level++ ) {
+            // next slot first, the current one (a full rotation ahead) last
+            final int start = (int) ( ( currentTick >>> ( SLOT_BITS * level ) ) + 1 ) & SLOT_MASK;
+            for ( int i = 0; i < SLOTS && polled.size() < max; i++ ) {
+                final Set<Entry> slot = wheel[level][(start + i) & SLOT_MASK];
+                if ( slot == null ) continue;
+                final Iterator<Entry> it = slot.iterator();
+                while ( it.hasNext() && polled.size() < max ) {
+                    final Entry entry = it.next(); it.remove();
+                    entries.remove(entry.session);
+                    polled.add(entry);
+                }
+            }
+        }
+        return polled;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        for ( final Set<Entry>[] level : wheel ) {
+            for ( int i = 0; i < SLOTS; i++ ) level[i] = null;
+        }
+    }
+
+    private void cascade(final int level, final int index) {
+        final Set<Entry> slot = wheel[level][index];
+        if ( slot == null || slot.isEmpty() ) return;
+        final Entry[] cascaded = slot.toArray(new Entry[slot.size()]);
+        slot.clear();
+        for ( final Entry entry : cascaded ) place(entry);
+    }
+
+    private void place(final Entry entry) {
+        // already due sessions go into the next slot (to be checked)
+        long tick = Math.max(entry.tick, currentTick + 1);
+        // the ones too far go into the last level (re-placed once reached)
+        long delta = tick - currentTick;
+        if ( delta > MAX_DELTA ) {
+            tick = currentTick + MAX_DELTA; delta = MAX_DELTA;
+        }
+        int level = 0;
+        while ( level < LEVELS - 1 && delta >= ( 1L << ( SLOT_BITS * (level + 1) ) ) ) level++;
+        final int index = (int) ( tick >>> ( SLOT_BITS * level ) ) & SLOT_MASK;
+        Set<Entry> slot = wheel[level][index];
+        if ( slot == null ) slot = wheel[level][index] = new HashSet<Entry>();
+        slot.add(entry);
+        entry.slot = slot;
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package rb.trinidad.context;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Off-heap storage for (serialized) sessions.
+ *
+ * Session bytes are appended into fixed size direct buffers (slabs) up to a
+ * maximum (memory) size. A slab is never compacted, once all of its entries
+ * are gone (taken back or expired) it gets re-used. Each slab keeps track of
+ * the earliest expiry of its entries thus expiration only visits slabs that
+ * might hold an expired session.
+ *
+ * The (moved) session object is weakly referenced, until collected it might
+ * be used instead of de-serializing the stored bytes.
+ *
+ * @author kares
+ */
+final class SessionSlabs {
+
+    static final class Entry {
+
+        final String id;
+        final Slab slab;
+        final int offset;
+        final int length;
+        final long expiry; // last accessed + max inactive (Long.MAX_VALUE if never)
+        final WeakReference<Object> session;
+
+        Entry(final String id, final Slab slab, final int offset, final int length,
+            final long expiry, final Object session) {
+            this.id = id; this.slab = slab;
+            this.offset = offset; this.length = length;
+            this.expiry = expiry;
+            this.session = session == null ? null : new WeakReference<Object>(session);
+        }
+
+    }
+
+    static final class Slab {
+
+        final ByteBuffer buffer;
+        final Set<Entry> entries = new HashSet<Entry>();
+        int position; // next free byte
+        long minExpiry = Long.MAX_VALUE;
+
+        Slab(final int size) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+
+        void reset() {
+            position = 0; minExpiry = Long.MAX_VALUE;
+        }
+
+    }
+
+    private final int slabSize;
+    private final long maxSize;
+
+    private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+    private final List<Slab> slabs = new ArrayList<Slab>();
+    private Slab current;
+    private long liveBytes;
+
+    SessionSlabs(final long maxSize, final int slabSize) {
+        if ( slabSize <= 0 ) throw new IllegalArgumentException("slab size: " + slabSize);
+        this.maxSize = maxSize;
+        this.slabSize = slabSize;
+    }
+
+    boolean contains(final String id) {
+        return index.containsKey(id);
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    /**
+     * @param id
+     * @param data serialized session
+     * @param expiry
+     * @param session the (live) session object
+     * @return false if there's no room for the session
+     */
+    synchronized boolean put(final String id, final byte[] data, final long expiry,
+        final Object session) {
+        if ( data.length > slabSize || index.containsKey(id) ) return false;
+        final Slab slab = allocate(data.length);
+        if ( slab == null ) return false;
+
+        final int offset = slab.position;
+        final ByteBuffer buffer = slab.buffer.duplicate();
+        buffer.position(offset);
+        buffer.put(data);
+        slab.position = offset + data.length;
+
+        final Entry entry = new Entry(id, slab, offset, data.length, expiry, session);
+        slab.entries.add(entry);
+        if ( expiry < slab.minExpiry ) slab.minExpiry = expiry;
+        index.put(id, entry);
+        liveBytes += data.length;
+        return true;
+    }
+
+    /**
+     * Removes the session from the store.
+     * @param id
+     * @return the serialized session (or null if not stored)
+     */
+    synchronized byte[] take(final String id) {
+        final Entry entry = index.remove(id);
+        if ( entry == null ) return null;
+        final byte[] data = read(entry);
+        release(entry);
+        return data;
+    }
+
+    /**
+     * @param id
+     * @return the serialized session (kept in the store) or null
+     */
+    synchronized byte[] get(final String id) {
+        final Entry entry = index.get(id);
+        return entry == null ? null : read(entry);
+    }
+
+    /**
+     * Removes the session from the store.
+     * @param id
+     * @return true if the session was stored
+     */
+    synchronized boolean remove(final String id) {
+        final Entry entry = index.remove(id);
+        if ( entry == null ) return false;
+        release(entry);
+        return true;
+    }
+
+    /**
+     * @param id
+     * @return the stored session's object, unless it has been collected
+     */
+    Object cached(final String id) {
+        final Entry entry = index.get(id);
+        return entry == null || entry.session == null ? null : entry.session.get();
+    }
+
+    private static byte[] read(final Entry entry) {
+        final byte[] data = new byte[entry.length];
+        final ByteBuffer buffer = entry.slab.buffer.duplicate();
+        buffer.position(entry.offset);
+        buffer.get(data);
+        return data;
+    }
+
+    /**
+     * Sweeps slabs that might hold an expired session.
+     * @param now
+     * @return ids of (stored) sessions that are expired
+     */
+    synchronized List<String> expired(final long now) {
+        List<String> expired = null;
+        for ( final Slab slab : slabs ) {
+            if ( slab.minExpiry > now ) continue;
+            long minExpiry = Long.MAX_VALUE;
+            for ( final Entry entry : slab.entries ) {
+                if ( entry.expiry <= now ) {
+                    if ( expired == null ) expired = new ArrayList<String>();
+                    expired.add(entry.id);
+                }
+                else if ( entry.expiry < minExpiry ) minExpiry = entry.expiry;
+            }
+            slab.minExpiry = minExpiry; // remaining entries (expired are taken)
+        }
+        if ( expired == null ) return Collections.emptyList();
+        return expired;
+    }
+
+    /**
+     * @return ids of all stored sessions
+     */
+    List<String> ids() {
+        return new ArrayList<String>(index.keySet());
+    }
+
+    synchronized void clear() {
+        index.clear();
+        slabs.clear();
+        current = null;
+        liveBytes = 0;
+    }
+
+    long getMaxSize() {
+        return maxSize;
+    }
+
+    int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * @return allocated (off-heap) memory
+     */
+    synchronized long getAllocatedSize() {
+        return (long) slabs.size() * slabSize;
+    }
+
+    /**
+     * @return bytes used by stored sessions
+     */
+    synchronized long getUsedSize() {
+        return liveBytes;
+    }
+
+    private Slab allocate(final int length) {
+        if ( current != null && current.position + length <= slabSize ) return current;
+        // re-use an empty slab
+        for ( final Slab slab : slabs ) {
+            if ( slab.entries.isEmpty() ) {
+                slab.reset(); return current = slab;
+            }
+        }
+        if ( (long) (slabs.size() + 1) * slabSize > maxSize ) return null;
+        final Slab slab = new Slab(slabSize);
+        slabs.add(slab);
+        return current = slab;
+    }
+
+    private void release(final Entry entry) {
+        final Slab slab = entry.slab;
+        slab.entries.remove(entry);
+        liveBytes -= entry.length;
+        if ( slab.entries.isEmpty() ) {
+            slab.reset();
+            // keep a single spare (empty) slab around, free the rest
+            int empty = 0;
+            for ( Iterator<Slab> it = slabs.iterator(); it.hasNext(); ) {
+                final Slab next = it.next();
+                if ( next.entries.isEmpty() && next != current && ++empty > 1 ) it.remove();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package rb.trinidad.context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A (binary) sessions snapshot file.
+ *
+ * The file starts with a header (magic number, version and flags) followed by
+ * length prefixed session records (possibly GZip compressed), ending with a
+ * -1 length. Records are decoded in batches (on several threads) while the
+ * file is still being read.
+ *
+ * @see DefaultSession#writeSnapshot(DataOutputStream)
+ *
+ * @author kares
+ */
+final class SessionSnapshot {
+
+    static final int MAGIC = 0x54525353; // "TRSS"
+    static final byte VERSION = 1;
+    static final byte COMPRESSED = 1;
+
+    private static final int HEADER_SIZE = 6;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Receives restored sessions (possibly from several threads).
+     */
+    interface Callback {
+        DefaultSession newSession();
+        void restored(DefaultSession session);
+    }
+
+    private SessionSnapshot() { /* no instances */ }
+
+    /**
+     * @param file
+     * @param sessions
+     * @param compress
+     * @return number of sessions written
+     * @throws IOException
+     */
+    static int write(final File file, final Collection<DefaultSession> sessions,
+        final boolean compress) throws IOException {
+        final FileOutputStream fileOut = new FileOutputStream(file);
+        boolean written = false;
+        try {
+            final FileChannel channel = fileOut.getChannel();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).put(VERSION).put( compress ? COMPRESSED : 0 );
+            header.flip();
+            while ( header.hasRemaining() ) channel.write(header);
+
+            OutputStream out = Channels.newOutputStream(channel);
+            if ( compress ) out = new GZIPOutputStream(out, BUFFER_SIZE);
+            final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+
+            final ByteArrayOutputStream record = new ByteArrayOutputStream(1024);
+            final DataOutputStream recordData = new DataOutputStream(record);
+            int count = 0;
+            for ( final DefaultSession session : sessions ) {
+                record.reset();
+                session.writeSnapshot(recordData);
+                recordData.flush();
+                data.writeInt(record.size());
+                record.writeTo(data);
+                count++;
+            }
+            data.writeInt(-1);
+            data.close(); // finishes compression and closes the channel
+            written = true;
+            return count;
+        }
+        finally {
+            if ( ! written ) {
+                try { fileOut.close(); } catch (IOException e) { /* ignore */ }
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @param file
+     * @param classLoader
+     * @param threads number of decoding threads
+     * @param callback
+     * @return number of restored sessions or -1 if not a snapshot file
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    static int read(final File file, final ClassLoader classLoader, final int threads,
+        final Callback callback) throws IOException, ClassNotFoundException {
+        final FileInputStream fileIn = new FileInputStream(file);
+        ThreadPoolExecutor executor = null;
+        try {
+            final FileChannel channel = fileIn.getChannel();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while ( header.hasRemaining() && channel.read(header) >= 0 ) { /* read header */ }
+            header.flip();
+            if ( header.remaining() < HEADER_SIZE || header.getInt() != MAGIC ) return -1;
+            final byte version = header.get();
+            if ( version != VERSION ) {
+                throw new IOException("unsupported session snapshot version: " + version);
+            }
+            final boolean compressed = ( header.get() & COMPRESSED ) != 0;
+
+            InputStream in = Channels.newInputStream(channel);
+            if ( compressed ) in = new GZIPInputStream(in, BUFFER_SIZE);
+            final DataInputStream data = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+
+            final List<Future<Integer>> decoded = new ArrayList<Future<Integer>>();
+            List<byte[]> batch = new ArrayList<byte[]>(BATCH_SIZE);
+            int length;
+            while ( ( length = readLength(data) ) >= 0 ) {
+                final byte[] record = new byte[length];
+                data.readFully(record);
+                batch.add(record);
+                if ( batch.size() == BATCH_SIZE ) {
+                    if ( executor == null && threads > 1 ) executor = newExecutor(threads);
+                    if ( executor == null ) {
+                        decode(batch, classLoader, callback);
+                    }
+                    else {
+                        decoded.add( executor.submit(new Decode(batch, classLoader, callback)) );
+                    }
+                    batch = new ArrayList<byte[]>(BATCH_SIZE);
+                }
+            }
+            int count = decode(batch, classLoader, callback);
+            for ( final Future<Integer> future : decoded ) count += await(future);
+            return count;
+        }
+        finally {
+            if ( executor != null ) executor.shutdownNow();
+            fileIn.close();
+        }
+    }
+
+    private static int readLength(final DataInputStream data) throws IOException {
+        try {
+            return data.readInt();
+        }
+        catch (EOFException e) {
+            throw new IOException("truncated session snapshot", e);
+        }
+    }
+
+    private static int decode(final List<byte[]> batch, final ClassLoader classLoader,
+        final Callback callback) throws IOException, ClassNotFoundException {
+        for ( final byte[] record : batch ) {
+            final DefaultSession session = callback.newSession();
+            session.readSnapshot(new DataInputStream(new ByteArrayInputStream(record)), classLoader);
+            callback.restored(session);
+        }
+        return batch.size();
+    }
+
+    private static final class Decode implements Callable<Integer> {
+
+        private final List<byte[]> batch;
+        private final ClassLoader classLoader;
+        private final Callback callback;
+
+        Decode(final List<byte[]> batch, final ClassLoader classLoader, final Callback callback) {
+            this.batch = batch;
+            this.classLoader = classLoader;
+            this.callback = callback;
+        }
+
+        public Integer call() throws Exception {
+            final Thread thread = Thread.currentThread();
+            final ClassLoader loader = thread.getContextClassLoader();
+            thread.setContextClassLoader(classLoader); // for activation listeners
+            try {
+                return decode(batch, classLoader, callback);
+            }
+            finally {
+                thread.setContextClassLoader(loader);
+            }
+        }
+
+    }
+
+    private static int await(final Future<Integer> future)
+        throws IOException, ClassNotFoundException {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    return future.get();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if ( cause instanceof IOException ) throw (IOException) cause;
+            if ( cause instanceof ClassNotFoundException ) throw (ClassNotFoundException) cause;
+            if ( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+            if ( cause instanceof Error ) throw (Error) cause;
+            throw new IOException(cause);
+        }
+        finally {
+            if ( interrupted ) Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ThreadPoolExecutor newExecutor(final int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        // bounded queue: the reading thread decodes itself when it's full
+        return new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(threads * 2), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable,
+                        "Trinidad-SessionLoad-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package rb.trinidad.context;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.Session;
+import org.apache.catalina.session.StandardSession;
+import org.apache.catalina.session.TooManyActiveSessionsException;
+
+/**
+ * A {@link DefaultManager} partitioning sessions (by id hash) into shards.
+ *
+ * Each shard has its own session map, expiry (timing) wheel and statistics,
+ * counters are lock-free and the (synchronized) timing stat queues of the
+ * base manager are not used. Statistics (as exposed through the manager's
+ * MBean) are combined from all shards.
+ *
+ * @author kares
+ */
+public class ShardedManager extends DefaultManager {
+
+    static final class Timing {
+
+        final long timestamp;
+        final int duration; // seconds
+
+        Timing(final long timestamp, final int duration) {
+            this.timestamp = timestamp; this.duration = duration;
+        }
+
+    }
+
+    static final class Shard {
+
+        final ConcurrentHashMap<String, Session> sessions;
+        final ExpiryWheel expiryWheel = new ExpiryWheel(1000, System.currentTimeMillis());
+
+        final AtomicLong created = new AtomicLong();
+        final AtomicLong expired = new AtomicLong();
+        final AtomicInteger maxAliveTime = new AtomicInteger();
+
+        final AtomicReferenceArray<Timing> creationTiming = new AtomicReferenceArray<Timing>(TIMING_STATS_CACHE_SIZE);
+        final AtomicReferenceArray<Timing> expirationTiming = new AtomicReferenceArray<Timing>(TIMING_STATS_CACHE_SIZE);
+        private final AtomicLong creationCursor = new AtomicLong();
+        private final AtomicLong expirationCursor = new AtomicLong();
+
+        Shard(final int initialCapacity) {
+            sessions = new ConcurrentHashMap<String, Session>(initialCapacity);
+        }
+
+        void created(final long timestamp) {
+            created.incrementAndGet();
+            record(creationTiming, creationCursor, new Timing(timestamp, 0));
+        }
+
+        void expired(final long now, final int aliveTime) {
+            expired.incrementAndGet();
+            int max;
+            while ( aliveTime > ( max = maxAliveTime.get() ) ) {
+                if ( maxAliveTime.compareAndSet(max, aliveTime) ) break;
+            }
+            record(expirationTiming, expirationCursor, new Timing(now, aliveTime));
+        }
+
+        private static void record(final AtomicReferenceArray<Timing> timing,
+            final AtomicLong cursor, final Timing entry) {
+            final int index = (int) ( cursor.getAndIncrement() % timing.length() );
+            timing.lazySet(index, entry);
+        }
+
+    }
+
+    private volatile Shard[] shards;
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    public ShardedManager() {
+        super();
+        setShards(Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    public String getName() {
+        return getClass().getSimpleName();
+    }
+
+    public int getShards() {
+        return shards.length;
+    }
+
+    /**
+     * @param shards number of shards (rounded up to a power of 2)
+     * @throws IllegalStateException if the manager is already started
+     */
+    public void setShards(int shards) {
+        if ( getState() != LifecycleState.NEW && getState() != LifecycleState.STOPPED ) {
+            throw new IllegalStateException("can not change shards of a " + getState() + " manager");
+        }
+        int count = 1;
+        while ( count < shards && count < ( 1 << 16 ) ) count <<= 1;
+        final Shard[] newShards = new Shard[count];
+        for ( int i = 0; i < count; i++ ) newShards[i] = new Shard(64);
+        final Map<String, Session> previous = this.sessions;
+        this.shards = newShards;
+        this.sessions = new ShardedMap(newShards);
+        if ( previous != null ) this.sessions.putAll(previous);
+    }
+
+    /**
+     * @return active session count of each shard (comma separated)
+     */
+    public String getShardSessions() {
+        final StringBuilder counts = new StringBuilder();
+        for ( final Shard shard : shards ) {
+            if ( counts.length() > 0 ) counts.append(',');
+            counts.append(shard.sessions.size());
+        }
+        return counts.toString();
+    }
+
+    @Override
+    public Session createSession(final String sessionId) {
+        // ManagerBase#createSession without the synchronized timing stats :
+        if ( maxActiveSessions >= 0 && getActiveSessions() >= maxActiveSessions ) {
+            rejected.incrementAndGet();
+            throw new TooManyActiveSessionsException(
+                sm.getString("managerBase.createSession.ise"), maxActiveSessions);
+        }
+
+        final Session session = createEmptySession();
+        session.setNew(true);
+        session.setValid(true);
+        session.setCreationTime(System.currentTimeMillis());
+        session.setMaxInactiveInterval(this.maxInactiveInterval);
+        final String id = sessionId == null ? generateSessionId() : sessionId;
+        session.setId(id);
+
+        shard(id).created(session.getCreationTime());
+        return session;
+    }
+
+    @Override
+    public void remove(final Session session, final boolean update) {
+        final String id = session.getIdInternal();
+        if ( update && id != null ) {
+            final long now = System.currentTimeMillis();
+            final int aliveTime = (int) ( now - session.getCreationTimeInternal() ) / 1000;
+            shard(id).expired(now, aliveTime);
+        }
+        if ( id != null ) sessions.remove(id);
+        cancelExpiry(session);
+    }
+
+    @Override
+    ExpiryWheel expiryWheel(final StandardSession session) {
+        return shard(session.getIdInternal()).expiryWheel;
+    }
+
+    @Override
+    ExpiryWheel[] expiryWheels() {
+        final Shard[] shards = this.shards;
+        final ExpiryWheel[] wheels = new ExpiryWheel[shards.length];
+        for ( int i = 0; i < shards.length; i++ ) wheels[i] = shards[i].expiryWheel;
+        return wheels;
+    }
+
+    private Shard shard(final String id) {
+        final Shard[] shards = this.shards;
+        return shards[ id == null ? 0 : index(id, shards.length) ];
+    }
+
+    static int index(final String id, final int length) {
+        final int h = id.hashCode();
+        return ( h ^ ( h >>> 16 ) ) & ( length - 1 );
+    }
+
+    // combined statistics :
+
+    @Override
+    public long getSessionCounter() {
+        long count = super.getSessionCounter(); // loaded / taken over
+        for ( final Shard shard : shards ) count += shard.created.get();
+        return count;
+    }
+
+    @Override
+    public void setSessionCounter(long sessionCounter) {
+        for ( final Shard shard : shards ) shard.created.set(0);
+        super.setSessionCounter(sessionCounter);
+    }
+
+    @Override
+    public long getExpiredSessions() {
+        long count = super.getExpiredSessions();
+        for ( final Shard shard : shards ) count += shard.expired.get();
+        return count;
+    }
+
+    @Override
+    public void setExpiredSessions(long expiredSessions) {
+        for ( final Shard shard : shards ) shard.expired.set(0);
+        super.setExpiredSessions(expiredSessions);
+    }
+
+    @Override
+    public int getRejectedSessions() {
+        return super.getRejectedSessions() + rejected.get();
+    }
+
+    @Override
+    public int getSessionMaxAliveTime() {
+        int max = super.getSessionMaxAliveTime();
+        for ( final Shard shard : shards ) max = Math.max(max, shard.maxAliveTime.get());
+        return max;
+    }
+
+    @Override
+    public void setSessionMaxAliveTime(int sessionMaxAliveTime) {
+        for ( final Shard shard : shards ) shard.maxAliveTime.set(0);
+        super.setSessionMaxAliveTime(sessionMaxAliveTime);
+    }
+
+    @Override
+    public int getSessionAverageAliveTime() {
+        long total = 0; int counter = 0;
+        for ( final Shard shard : shards ) {
+            final AtomicReferenceArray<Timing> timing = shard.expirationTiming;
+            for ( int i = 0; i < timing.length(); i++ ) {
+                final Timing entry = timing.get(i);
+                if ( entry != null ) {
+                    total += entry.duration; counter++;
+                }
+            }
+        }
+        return counter == 0 ? 0 : (int) ( total / counter );
+    }
+
+    @Override
+    public int getSessionCreateRate() {
+        return rate(true);
+    }
+
+    @Override
+    public int getSessionExpireRate() {
+        return rate(false);
+    }
+
+    /**
+     * @return sessions per minute (based on the recorded timing of all shards)
+     */
+    private int rate(final boolean creation) {
+        final long now = System.currentTimeMillis();
+        long oldest = now; int counter = 0;
+        for ( final Shard shard : shards ) {
+            final AtomicReferenceArray<Timing> timing =
+                creation ? shard.creationTiming : shard.expirationTiming;
+            for ( int i = 0; i < timing.length(); i++ ) {
+                final Timing entry = timing.get(i);
+                if ( entry != null ) {
+                    counter++;
+                    if ( entry.timestamp < oldest ) oldest = entry.timestamp;
+                }
+            }
+        }
+        if ( counter == 0 ) return 0;
+        if ( oldest >= now ) return Integer.MAX_VALUE;
+        return (int) ( 1000L * 60 * counter / ( now - oldest ) );
+    }
+
+    /**
+     * A (sessions) map view over all shards.
+     */
+    static final class ShardedMap extends AbstractMap<String, Session> {
+
+        private final Shard[] shards;
+
+        ShardedMap(final Shard[] shards) {
+            this.shards = shards;
+        }
+
+        private Map<String, Session> map(final Object key) {
+            if ( key == null ) throw new NullPointerException();
+            return shards[ index(key.toString(), shards.length) ].sessions;
+        }
+
+        @Override
+        public Session get(final Object key) {
+            return map(key).get(key);
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return map(key).containsKey(key);
+        }
+
+        @Override
+        public Session put(final String key, final Session value) {
+            return map(key).put(key, value);
+        }
+
+        @Override
+        public Session remove(final Object key) {
+            return map(key).remove(key);
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for ( final Shard shard : shards ) size += shard.sessions.size();
+            return size;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            for ( final Shard shard : shards ) {
+                if ( ! shard.sessions.isEmpty() ) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            for ( final Shard shard : shards ) shard.sessions.clear();
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return new AbstractSet<String>() {
+                public Iterator<String> iterator() {
+                    return new ShardIterator<String>(shards) {
+                        Iterator<String> iterator(final Shard shard) {
+                            return shard.sessions.keySet().iterator();
+                        }
+                    };
+                }
+                public int size() { return ShardedMap.this.size(); }
+            };
+        }
+
+        @Override
+        public Collection<Session> values() {
+            return new AbstractCollection<Session>() {
+                public Iterator<Session> iterator() {
+                    return new ShardIterator<Session>(shards) {
+                        Iterator<Session> iterator(final Shard shard) {
+                            return shard.sessions.values().iterator();
+                        }
+                    };
+                }
+                public int size() { return ShardedMap.this.size(); }
+            };
+        }
+
+        @Override
+        public Set<Map.Entry<String, Session>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Session>>() {
+                public Iterator<Map.Entry<String, Session>> iterator() {
+                    return new ShardIterator<Map.Entry<String, Session>>(shards) {
+                        Iterator<Map.Entry<String, Session>> iterator(final Shard shard) {
+                            return shard.sessions.entrySet().iterator();
+                        }
+                    };
+                }
+                public int size() { return ShardedMap.this.size(); }
+            };
+        }
+
+    }
+
+    static abstract class ShardIterator<T> implements Iterator<T> {
+
+        private final Shard[] shards;
+        private int index = 0;
+        private Iterator<T> current;
+
+        ShardIterator(final Shard[] shards) {
+            this.shards = shards;
+        }
+
+        abstract Iterator<T> iterator(final Shard shard);
+
+        public boolean hasNext() {
+            while ( current == null || ! current.hasNext() ) {
+                if ( index >= shards.length ) return false;
+                current = iterator(shards[index++]);
+            }
+            return true;
+        }
+
+        public T next() {
+            if ( ! hasNext() ) throw new NoSuchElementException();
+            return current.next();
+        }
+
+        public void remove() {
+            if ( current == null ) throw new IllegalStateException();
+            current.remove();
+        }
+
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package rb.trinidad.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A (log file) writer encoding characters directly into a (direct) byte buffer
+ * that gets appended to the file using a channel.
+ *
+ * <p>
+ * When a map size is given the file is appended through a memory mapped region
+ * (re-mapped in chunks of the given size as it fills up). The file is always
+ * truncated to the written size on close, but note that a crash might leave
+ * (zero) bytes of an unused region at the end of the file.
+ * </p>
+ *
+ * @author kares
+ */
+final class ChannelWriter extends Writer {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final CharsetEncoder encoder;
+
+    private final int mapSize; // 0 if not mapped
+    private volatile ByteBuffer buffer; // direct or mapped
+    private volatile long bufferPosition; // file position the buffer starts at
+
+    private final long flushInterval;
+    private final long forceInterval;
+    private long lastFlush, lastForce;
+
+    /**
+     * @param logFile the file to append to
+     * @param charset the character set for encoding
+     * @param bufferSize the direct buffer size (ignored when mapped)
+     * @param mapSize the mapped region (chunk) size, 0 to not map the file
+     * @param flushInterval (millis) how often to write the buffer on flush,
+     * 0 writes on every flush
+     * @param forceInterval (millis) how often to force writes on flush to
+     * the storage device, 0 forces on every flush and -1 never
+     * @throws IOException
+     */
+    ChannelWriter(final File logFile, final Charset charset,
+        final int bufferSize, final int mapSize,
+        final long flushInterval, final long forceInterval) throws IOException {
+        super();
+        this.file = new RandomAccessFile(logFile, "rw");
+        this.channel = file.getChannel();
+        this.encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.mapSize = mapSize > 0 ? mapSize : 0;
+        this.flushInterval = flushInterval;
+        this.forceInterval = forceInterval;
+        this.bufferPosition = channel.size();
+        if ( this.mapSize > 0 ) {
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, bufferPosition, mapSize);
+        }
+        else {
+            this.buffer = ByteBuffer.allocateDirect(bufferSize > 0 ? bufferSize : 8192);
+            channel.position(bufferPosition);
+        }
+        this.lastFlush = this.lastForce = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the (logical) file size - including buffered bytes, this is
+     * not synchronized with writes thus might be slightly off
+     */
+    long size() {
+        final ByteBuffer buffer = this.buffer;
+        return bufferPosition + ( buffer == null ? 0 : buffer.position() );
+    }
+
+    @Override
+    public void write(final char[] chars, final int off, final int len) throws IOException {
+        encode( CharBuffer.wrap(chars, off, len) );
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) throws IOException {
+        encode( CharBuffer.wrap(str, off, off + len) );
+    }
+
+    // NOTE: every write is encoded as a whole, a surrogate pair split between
+    // two writes won't be encoded properly (the PrintWriter writes strings)
+    private void encode(final CharBuffer chars) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            encoder.reset();
+            CoderResult result;
+            do {
+                result = encoder.encode(chars, buffer, true);
+                if ( result.isOverflow() ) drain();
+                else if ( result.isError() ) result.throwException();
+            }
+            while ( result.isOverflow() );
+            while ( encoder.flush(buffer).isOverflow() ) drain();
+        }
+    }
+
+    // makes room in the buffer
+    private void drain() throws IOException {
+        if ( mapSize > 0 ) {
+            bufferPosition += buffer.position();
+            unmap(buffer);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, bufferPosition, mapSize);
+        }
+        else {
+            buffer.flip();
+            while ( buffer.hasRemaining() ) bufferPosition += channel.write(buffer);
+            buffer.clear();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            final long now = System.currentTimeMillis();
+            if ( mapSize == 0 && now - lastFlush >= flushInterval ) {
+                drain(); lastFlush = now;
+            }
+            if ( forceInterval >= 0 && now - lastForce >= forceInterval ) {
+                force(); lastForce = now;
+            }
+        }
+    }
+
+    private void force() throws IOException {
+        if ( mapSize > 0 ) ((MappedByteBuffer) buffer).force();
+        else channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if ( buffer == null ) return;
+            try {
+                if ( mapSize > 0 ) {
+                    final long size = bufferPosition + buffer.position();
+                    if ( forceInterval >= 0 ) force();
+                    unmap(buffer);
+                    channel.truncate(size); // un-used mapped region
+                }
+                else {
+                    drain();
+                    if ( forceInterval >= 0 ) force();
+                }
+            }
+            finally {
+                buffer = null;
+                file.close();
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if ( buffer == null ) throw new IOException("writer closed");
+    }
+
+    private static Method cleanerMethod, cleanMethod;
+
+    // best effort to release the mapped region (otherwise happens on GC)
+    private static void unmap(final ByteBuffer buffer) {
+        try {
+            if ( cleanerMethod == null ) {
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object c = cleaner.invoke(buffer);
+                Method clean = c.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                cleanerMethod = cleaner; cleanMethod = clean;
+            }
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if ( cleaner != null ) cleanMethod.invoke(cleaner);
+        }
+        catch (Exception e) { /* not supported (on this JVM) - ignore */ }
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package rb.trinidad.logging;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Caches the last formatted time-stamp, formatting (on a miss) happens using a
+ * per-thread copy of the date format thus no locking is needed.
+ *
+ * Patterns that do not print milliseconds are cached per second, otherwise
+ * (or for non simple date formats) the cache is only hit for the same millis.
+ *
+ * @author kares
+ */
+final class DateFormatCache {
+
+    private static final class Entry {
+
+        final long time; // seconds (or millis) since epoch
+        final String text;
+
+        Entry(final long time, final String text) {
+            this.time = time; this.text = text;
+        }
+
+    }
+
+    private final DateFormat dateFormat;
+    private final boolean perSecond;
+
+    private final ThreadLocal<DateFormat> dateFormats = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return (DateFormat) dateFormat.clone();
+        }
+    };
+
+    private volatile Entry cached;
+
+    /**
+     * @param dateFormat the format to use (should not change once used)
+     */
+    DateFormatCache(final DateFormat dateFormat) {
+        this.dateFormat = dateFormat;
+        this.perSecond = dateFormat instanceof SimpleDateFormat &&
+            ! printsMillis( ((SimpleDateFormat) dateFormat).toPattern() );
+    }
+
+    String format(final long millis) {
+        final long time = perSecond ? floorSeconds(millis) : millis;
+        final Entry entry = cached;
+        if ( entry != null && entry.time == time ) return entry.text;
+
+        final String text = dateFormats.get().format( new Date(millis) );
+        cached = new Entry(time, text);
+        return text;
+    }
+
+    private static long floorSeconds(final long millis) {
+        final long seconds = millis / 1000;
+        return ( millis < 0 && seconds * 1000 != millis ) ? seconds - 1 : seconds;
+    }
+
+    // whether there's a 'S' outside of a quoted ('...') pattern literal
+    static boolean printsMillis(final String pattern) {
+        boolean quoted = false;
+        for ( int i = 0; i < pattern.length(); i++ ) {
+            final char c = pattern.charAt(i);
+            if ( c == '\'' ) quoted = ! quoted; // '' (escaped quote) toggles twice
+            else if ( c == 'S' && ! quoted ) return true;
+        }
+        return false;
+    }
+
+}
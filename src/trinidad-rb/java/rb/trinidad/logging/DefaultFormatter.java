@@ -23,12 +23,9 @@
 
 package rb.trinidad.logging;
 
-import java.lang.reflect.Field;
 import java.text.DateFormat;
-import java.text.FieldPosition;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.TimeZone;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
@@ -38,26 +35,16 @@ import static rb.trinidad.logging.LoggingHelpers.*;
 /**
  * Default logging record formatter for Trinidad.
  *
+ * <p>
+ * NOTE: the (rendered) time-stamp is cached and formatting happens without
+ * locking, thus the date format should not be changed after records
+ * have been formatted.
+ * </p>
+ *
  * @author kares
  */
 public class DefaultFormatter extends Formatter {
 
-    private final FieldPosition dummyPosition;
-
-    {
-        FieldPosition fieldPosition;
-        try {
-            Class klass = Class.forName("java.text.DontCareFieldPosition");
-            Field instance = klass.getDeclaredField("INSTANCE");
-            instance.setAccessible(true);
-            fieldPosition = (FieldPosition) instance.get(null);
-        }
-        catch (Exception e) {
-            fieldPosition = new FieldPosition(0);
-        }
-        dummyPosition = fieldPosition;
-    }
-
     private final DateFormat dateFormat;
 
     public DefaultFormatter(String format) {
@@ -97,24 +84,45 @@ public class DefaultFormatter extends Formatter {
         return dateFormat;
     }
 
+    private DateFormatCache dateFormatCache;
+
+    private DateFormatCache getDateFormatCache() {
+        DateFormatCache cache = dateFormatCache;
+        if ( cache == null ) { // constructors might still adjust the format
+            dateFormatCache = cache = new DateFormatCache(dateFormat);
+        }
+        return cache;
+    }
+
     @Override
     public String format(final LogRecord record) {
-        String message = record.getMessage();
-        StringBuffer msg = new StringBuffer(32 + 2 + 7 + 1 + message.length());
-        Date millis = new Date(record.getMillis());
-        synchronized(dateFormat) {
-            dateFormat.format(millis, msg, dummyPosition);
-        }
+        final StringBuilder msg = acquireBuffer();
+        msg.append( getDateFormatCache().format( record.getMillis() ) );
         msg.append(' ').append(record.getLevel().getName()).append(':'); // WARNING:
         msg.append(' ').append(formatMessage(record)); // message
         if ( ! endsWithLineSeparator(msg) ) msg.append(LINE_SEPARATOR);
         final CharSequence thrown = formatThrown(record);
         if ( thrown != null ) msg.append(thrown);
-        return msg.toString();
+        final String result = msg.toString();
+        releaseBuffer(msg);
+        return result;
+    }
+
+    private StackTraceFormatter stackTraceFormatter;
+
+    public StackTraceFormatter getStackTraceFormatter() {
+        return stackTraceFormatter;
+    }
+
+    /**
+     * @param stackTraceFormatter customized (thrown) stack trace rendering
+     */
+    public void setStackTraceFormatter(StackTraceFormatter stackTraceFormatter) {
+        this.stackTraceFormatter = stackTraceFormatter;
     }
 
     protected CharSequence formatThrown(final LogRecord record) {
-        return LoggingHelpers.formatThrown( record.getThrown() );
+        return LoggingHelpers.formatThrown( record.getThrown(), stackTraceFormatter );
     }
 
 }
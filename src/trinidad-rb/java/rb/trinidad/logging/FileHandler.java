@@ -23,21 +23,73 @@
 
 package rb.trinidad.logging;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 import java.nio.channels.FileChannel;
-
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * FileHandler improvements for logging into a file (with JUL).
  * 
+ * <p>
+ * When set to be asynchronous, records are only queued on the publishing
+ * thread and formatted + written (in batches) by a single writer thread.
+ * </p>
+ * 
+ * <p>
+ * Besides the (default) "stream" writer, log files might be written using a
+ * "channel" writer (encoding into a direct buffer) or a "mapped" writer that
+ * appends through memory mapped regions of the file.
+ * </p>
+ * 
  * @author kares
  */
 public class FileHandler extends org.apache.juli.FileHandler {
     
+    /**
+     * What to do with a published record when the async queue is full.
+     */
+    public enum OverflowPolicy {
+        /** wait (on the publishing thread) until there's room in the queue */
+        BLOCK,
+        /** discard the oldest queued record to make room for the new one */
+        DROP_OLDEST,
+        /** discard the published record (only the dropped count is kept) */
+        DROP
+    }
+    
+    private static final int DEFAULT_QUEUE_SIZE = 8192;
+    private static final int DEFAULT_BATCH_SIZE = 256;
+    
+    // marks the end of queued records when closing (never written)
+    private static final LogRecord END_OF_QUEUE = new LogRecord(Level.OFF, "");
+    
     private static final Field directoryField;
     private static final Field prefixField;
     private static final Field suffixField;
@@ -76,6 +128,51 @@ public class FileHandler extends org.apache.juli.FileHandler {
         setField(dateField, null); // self._date = nil
     }
     
+    public static final String STREAM_WRITER = "stream";
+    public static final String CHANNEL_WRITER = "channel";
+    public static final String MAPPED_WRITER = "mapped";
+    
+    private String writerType = STREAM_WRITER;
+    private int mapSize = 1024 * 1024;
+    private long flushInterval = 0;
+    private long forceInterval = -1;
+    
+    private long maxFileSize = 0;
+    private boolean compress = false;
+    private int maxHistory = 0;
+    
+    // keeping track of the file size (for size based rotation) :
+    private volatile CountingOutputStream countingStream;
+    private volatile ChannelWriter channelWriter;
+    
+    @Override
+    protected PrintWriter createWriter(final File logFile) throws IOException {
+        final String encoding = getEncoding();
+        final Integer bufferSize = getBufferSize();
+        if ( STREAM_WRITER.equals(writerType) ) {
+            if ( maxFileSize <= 0 ) return super.createWriter(logFile);
+            final CountingOutputStream counter = new CountingOutputStream(
+                new FileOutputStream(logFile, true), logFile.length()
+            );
+            final OutputStream out = ( bufferSize != null && bufferSize > 0 ) ?
+                new BufferedOutputStream(counter, bufferSize) : counter;
+            final PrintWriter writer = new PrintWriter(
+                    encoding != null ? new OutputStreamWriter(out, encoding)
+                                     : new OutputStreamWriter(out), false);
+            countingStream = counter;
+            return writer;
+        }
+        
+        final Charset charset = encoding == null ? 
+            Charset.defaultCharset() : Charset.forName(encoding);
+        final boolean mapped = MAPPED_WRITER.equals(writerType);
+        final ChannelWriter writer = new ChannelWriter(logFile, charset,
+            bufferSize == null ? 0 : bufferSize, mapped ? mapSize : 0,
+            flushInterval, forceInterval);
+        if ( maxFileSize > 0 ) channelWriter = writer;
+        return new PrintWriter(writer, false);
+    }
+    
     @Override
     protected void openWriter() {
         // NOTE: following code is heavily based on super's internals !
@@ -95,21 +192,202 @@ public class FileHandler extends org.apache.juli.FileHandler {
         }
     }
     
+    private volatile boolean async = false;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    
+    private volatile AsyncWriter asyncWriter;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private long droppedReported = 0; // only accessed from the writer thread
+    
+    @Override
+    public void publish(final LogRecord record) {
+        if ( ! async ) {
+            super.publish(record); return;
+        }
+        if ( ! isLoggable(record) ) return;
+        
+        AsyncWriter writer = asyncWriter;
+        if ( writer == null ) writer = startAsyncWriter();
+        if ( ! writer.enqueue(record) ) {
+            super.publish(record); // writer stopped (closing) - write directly
+        }
+    }
+    
     private boolean closing = false;
     
     @Override
     public void close() {
+        stopAsyncWriter(); // drains all queued records
         closing = true;
         super.close(); // closeWriter()
         closing = false;
+        stopArchiving(); // wait for pending compression
     }
+    
+    private synchronized AsyncWriter startAsyncWriter() {
+        AsyncWriter writer = asyncWriter;
+        if ( writer == null ) {
+            writer = new AsyncWriter(queueSize);
+            writer.start();
+            asyncWriter = writer;
+        }
+        return writer;
+    }
+    
+    private void stopAsyncWriter() {
+        final AsyncWriter writer;
+        synchronized(this) {
+            writer = asyncWriter;
+            asyncWriter = null;
+        }
+        if ( writer != null ) writer.finish();
+    }
+    
+    private void writeBatch(final List<LogRecord> batch) {
+        final long dropped = droppedCount.get();
+        if ( dropped != droppedReported ) {
+            final LogRecord record = new LogRecord(Level.WARNING,
+                "dropped " + (dropped - droppedReported) + " log record(s) due a full queue");
+            droppedReported = dropped;
+            publish(record, false);
+        }
+        for ( int i = 0; i < batch.size(); i++ ) {
+            publish(batch.get(i), false);
+        }
+        flush(); // once per batch
+    }
+    
+    /**
+     * The single thread formatting and writing queued records.
+     */
+    private class AsyncWriter extends Thread {
+        
+        private final BlockingQueue<LogRecord> queue;
+        private volatile boolean finished = false;
+        
+        AsyncWriter(final int capacity) {
+            super("Trinidad-FileHandler[" + getPrefix() + getSuffix() + "]");
+            this.queue = new ArrayBlockingQueue<LogRecord>(capacity);
+            setDaemon(true);
+        }
+        
+        boolean enqueue(final LogRecord record) {
+            if ( finished ) return false;
+            switch ( overflowPolicy ) {
+                case DROP :
+                    if ( ! queue.offer(record) ) droppedCount.incrementAndGet();
+                    return true;
+                case DROP_OLDEST :
+                    while ( ! queue.offer(record) ) {
+                        final LogRecord oldest = queue.poll();
+                        if ( oldest == END_OF_QUEUE ) { // finishing, never drop the marker
+                            requeueEndOfQueue(); return false;
+                        }
+                        if ( oldest != null ) droppedCount.incrementAndGet();
+                    }
+                    return true;
+                default : // BLOCK
+                    try {
+                        while ( ! queue.offer(record, 100, TimeUnit.MILLISECONDS) ) {
+                            if ( finished || ! isAlive() ) return false;
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    return true;
+            }
+        }
+        
+        private void requeueEndOfQueue() {
+            while ( ! queue.offer(END_OF_QUEUE) ) {
+                final LogRecord oldest = queue.poll();
+                if ( oldest != null ) droppedCount.incrementAndGet();
+            }
+        }
 
+        void finish() {
+            finished = true;
+            boolean interrupted = false, queued = false;
+            while ( isAlive() ) { // a dead writer won't ever take the marker
+                try {
+                    if ( ! queued ) {
+                        queued = queue.offer(END_OF_QUEUE, 100, TimeUnit.MILLISECONDS);
+                        if ( ! queued ) continue;
+                    }
+                    join(); break;
+                }
+                catch (InterruptedException e) { interrupted = true; }
+            }
+            if ( interrupted ) Thread.currentThread().interrupt();
+        }
+        
+        @Override
+        public void run() {
+            try {
+                writeRecords();
+            }
+            finally { // producers fallback to writing directly if we die
+                finished = true;
+            }
+        }
+
+        private void writeRecords() {
+            final ArrayList<LogRecord> batch = new ArrayList<LogRecord>(batchSize);
+            boolean end = false;
+            while ( ! end ) {
+                try {
+                    batch.add( queue.take() );
+                }
+                catch (InterruptedException e) {
+                    continue; // only finish() is supposed to stop us
+                }
+                queue.drainTo(batch, batchSize - 1);
+                final int marker = batch.indexOf(END_OF_QUEUE);
+                if ( marker >= 0 ) {
+                    batch.remove(marker); end = true;
+                    // records published while finishing might follow the marker
+                    queue.drainTo(batch);
+                }
+                try {
+                    writeBatch(batch);
+                }
+                catch (Throwable e) { // keep writing (even on errors)
+                    reportError(null, e instanceof Exception ? (Exception) e :
+                        new RuntimeException(e), ErrorManager.WRITE_FAILURE);
+                }
+                batch.clear();
+            }
+        }
+        
+    }
+
+    @Override
+    protected boolean isRollOverNeeded() {
+        final long maxSize = maxFileSize;
+        return maxSize > 0 && currentFileSize() >= maxSize;
+    }
+    
+    private long currentFileSize() {
+        final CountingOutputStream counter = countingStream;
+        if ( counter != null ) return counter.count;
+        final ChannelWriter channelWriter = this.channelWriter;
+        if ( channelWriter != null ) return channelWriter.size();
+        return 0;
+    }
+    
     @Override
     protected void closeWriter() {
         String date = (String) getField(dateField);
         super.closeWriter(); // sets `date = null`
-        boolean rotatable = isRotatable();
-        if ( ! rotatable || closing ) return; // no rotation ...
+        countingStream = null; channelWriter = null;
+        if ( closing ) return; // no rotation ...
+        final boolean rotatable = isRotatable();
+        final long maxSize = maxFileSize;
+        if ( ! rotatable && maxSize <= 0 ) return; // no rotation ...
         // the additional trick here is to rotate the closed file
         synchronized(this) {
             // we're normally in the lock here (from #publish) 
@@ -117,35 +395,221 @@ public class FileHandler extends org.apache.juli.FileHandler {
             final File dir = new File( getDirectory() ).getAbsoluteFile();
             final File log = new File( dir, getPrefix() + "" + getSuffix() );
             if ( log.exists() ) {
+                final boolean oversized = maxSize > 0 && log.length() >= maxSize;
+                if ( ! rotatable ) {
+                    if ( oversized ) rotate(dir, log, "");
+                    return;
+                }
                 if ( date == null || date.isEmpty() ) {
                     final long lastMod = log.lastModified();
-                    // we abuse Timestamp to get a date formatted !
-                    // just like super does internally (to be sure)
-                    date = new java.sql.Timestamp(lastMod).toString().substring(0, 10);
+                    if ( isCurrentDate(lastMod) ) {
+                        if ( ! oversized ) return; // no need to rotate just yet
+                        date = currentDate();
+                    }
+                    else {
+                        date = formatDate(lastMod); // same format as super uses
+                    }
                 }
-                final long todayMS = System.currentTimeMillis();
-                String today = new java.sql.Timestamp(todayMS).toString().substring(0, 10);
-                if ( date.equals(today) ) return; // no need to rotate just yet
-                File toFile = new File(dir, getPrefix() + date + getSuffix());
-                if ( toFile.exists() ) {
-                    try {
-                        RandomAccessFile file = new RandomAccessFile(toFile, "rw");
-                        file.seek( file.length() );
-                        FileChannel logChannel = new FileInputStream(log).getChannel();
-                        logChannel.transferTo(0, logChannel.size(), file.getChannel());
-                        file.close();
-                        logChannel.close();
-                        log.delete();   
+                else if ( ! oversized && date.equals( currentDate() ) ) {
+                    return; // no need to rotate just yet
+                }
+                rotate(dir, log, date);
+            }
+        }
+    }
+    
+    /**
+     * Rotate the (closed) log file, this only renames the file while merging
+     * into an existing log, compression and pruning happens in the background.
+     */
+    private void rotate(final File dir, final File log, final String date) {
+        if ( maxFileSize > 0 ) { // {prefix}{date}.{index}{suffix} segments
+            final File segment = nextSegment(dir, date);
+            if ( ! log.renameTo(segment) ) {
+                reportError("Unable to rename [" + log + "] to [" + segment + "]", null, ErrorManager.GENERIC_FAILURE);
+                return;
+            }
+            if ( compress ) archive(segment, segment); // segment.gz
+            else prune(dir);
+            return;
+        }
+        final File toFile = new File(dir, getPrefix() + date + getSuffix());
+        if ( ! toFile.exists() ) {
+            if ( ! log.renameTo(toFile) ) {
+                reportError("Unable to rename [" + log + "] to [" + toFile + "]", null, ErrorManager.GENERIC_FAILURE);
+                return;
+            }
+            if ( compress ) archive(toFile, toFile);
+            else prune(dir);
+        }
+        else { // merge (in the background) into the existing file :
+            final File pending = new File(dir, log.getName() + '.' + System.currentTimeMillis());
+            if ( ! log.renameTo(pending) ) {
+                reportError("Unable to rename [" + log + "] to [" + pending + "]", null, ErrorManager.GENERIC_FAILURE);
+                return;
+            }
+            archive(pending, toFile);
+        }
+    }
+    
+    private String segmentDate;
+    private int segmentIndex;
+    
+    private File nextSegment(final File dir, final String date) {
+        if ( ! date.equals(segmentDate) ) {
+            segmentDate = date; segmentIndex = 0;
+        }
+        final String prefix = getPrefix() + date + '.', suffix = getSuffix();
+        File segment;
+        do {
+            segment = new File(dir, prefix + (++segmentIndex) + suffix);
+        }
+        while ( segment.exists() || new File(segment.getPath() + ".gz").exists() );
+        return segment;
+    }
+    
+    /**
+     * Moves the source log into the target (appending if the target exists).
+     * When compressing the target will be a gzip file (appending a new member).
+     */
+    private void archive(final File source, final File target) {
+        final File dir = source.getParentFile();
+        final boolean compress = this.compress;
+        submitArchiving(new Runnable() {
+            public void run() {
+                try {
+                    if ( compress ) {
+                        gzip(source, new File(target.getPath() + ".gz"));
+                        source.delete();
                     }
-                    catch (IOException e) {
-                        throw new RuntimeException(e);
+                    else if ( target.exists() || ! source.renameTo(target) ) {
+                        append(source, target);
+                        source.delete();
                     }
                 }
-                else {
-                    log.renameTo(toFile);
+                catch (IOException e) {
+                    reportError("Failed archiving [" + source + "]", e, ErrorManager.GENERIC_FAILURE);
+                }
+                pruneNow(dir);
+            }
+        });
+    }
+    
+    private void prune(final File dir) {
+        if ( maxHistory <= 0 ) return;
+        submitArchiving(new Runnable() {
+            public void run() { pruneNow(dir); }
+        });
+    }
+    
+    // delete the oldest rotated log files (keeping max-history files)
+    private void pruneNow(final File dir) {
+        final int maxHistory = this.maxHistory;
+        if ( maxHistory <= 0 ) return;
+        final Pattern rotated = Pattern.compile(
+            Pattern.quote(getPrefix()) + "[\\d\\.\\-]+" + Pattern.quote(getSuffix()) + "(\\.gz)?"
+        );
+        final File[] files = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && rotated.matcher(file.getName()).matches();
+            }
+        });
+        if ( files == null || files.length <= maxHistory ) return;
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File file1, File file2) { // newest first
+                final long mod1 = file1.lastModified(), mod2 = file2.lastModified();
+                return mod1 > mod2 ? -1 : ( mod1 == mod2 ? 0 : 1 );
+            }
+        });
+        for ( int i = maxHistory; i < files.length; i++ ) files[i].delete();
+    }
+    
+    private static void gzip(final File source, final File target) throws IOException {
+        final FileInputStream in = new FileInputStream(source);
+        try {
+            final GZIPOutputStream out = new GZIPOutputStream(
+                new FileOutputStream(target, true), 32 * 1024
+            );
+            try {
+                final byte[] buffer = new byte[32 * 1024]; int read;
+                while ( ( read = in.read(buffer) ) != -1 ) out.write(buffer, 0, read);
+            }
+            finally { out.close(); }
+        }
+        finally { in.close(); }
+    }
+    
+    private static void append(final File source, final File target) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            file.seek( file.length() );
+            final FileChannel logChannel = new FileInputStream(source).getChannel();
+            try {
+                final long size = logChannel.size(); long position = 0;
+                while ( position < size ) {
+                    position += logChannel.transferTo(position, size - position, file.getChannel());
                 }
             }
+            finally { logChannel.close(); }
         }
+        finally { file.close(); }
+    }
+    
+    private ExecutorService archiver;
+    
+    private synchronized void submitArchiving(final Runnable task) {
+        if ( archiver == null ) {
+            final String name = "Trinidad-FileHandler[" + getPrefix() + getSuffix() + "]-archiver";
+            archiver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        archiver.execute(task);
+    }
+    
+    // waits for pending compression/merges to complete
+    private void stopArchiving() {
+        final ExecutorService archiver;
+        synchronized(this) {
+            archiver = this.archiver;
+            this.archiver = null;
+        }
+        if ( archiver == null ) return;
+        archiver.shutdown();
+        try {
+            archiver.awaitTermination(60, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Keeps track of the number of written bytes (the file size).
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        
+        volatile long count;
+        
+        CountingOutputStream(final OutputStream out, final long count) {
+            super(out);
+            this.count = count;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b); count++;
+        }
+        
+        @Override
+        public void write(byte[] bytes, int off, int len) throws IOException {
+            out.write(bytes, off, len); count += len;
+        }
+        
     }
     
     public String getDirectory() {
@@ -189,6 +653,160 @@ public class FileHandler extends org.apache.juli.FileHandler {
         setField(bufferSizeField, bufferSize);
     }
     
+    public String getWriterType() {
+        return writerType;
+    }
+    
+    /**
+     * @param writerType "stream" (default), "channel" or "mapped"
+     * (applies when the log file gets opened)
+     */
+    public void setWriterType(String writerType) {
+        if ( writerType == null ) writerType = STREAM_WRITER;
+        writerType = writerType.toLowerCase();
+        if ( ! STREAM_WRITER.equals(writerType) && 
+             ! CHANNEL_WRITER.equals(writerType) && 
+             ! MAPPED_WRITER.equals(writerType) ) {
+            throw new IllegalArgumentException("unsupported writer type: " + writerType);
+        }
+        this.writerType = writerType;
+    }
+    
+    public int getMapSize() {
+        return mapSize;
+    }
+    
+    /**
+     * @param mapSize the size of a mapped region (the log file grows by)
+     */
+    public void setMapSize(int mapSize) {
+        if ( mapSize <= 0 ) {
+            throw new IllegalArgumentException("map size must be positive: " + mapSize);
+        }
+        this.mapSize = mapSize;
+    }
+    
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+    
+    /**
+     * @param flushInterval (millis) writes buffered data on flush at most
+     * once per given interval, 0 writes on every flush (channel writer only)
+     * NOTE: since flushing happens as records get published, data might stay
+     * buffered until another record is published (or the handler is closed)
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+    
+    public long getForceInterval() {
+        return forceInterval;
+    }
+    
+    /**
+     * @param forceInterval (millis) forces written data to the storage device
+     * on flush at most once per given interval, 0 forces on every flush while
+     * -1 (default) never forces (channel and mapped writers only)
+     */
+    public void setForceInterval(long forceInterval) {
+        this.forceInterval = forceInterval;
+    }
+    
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+    
+    /**
+     * Set a size (in bytes) for the log file to be rolled over once reached.
+     * Rotated files are named {prefix}{date}.{index}{suffix} (or without the
+     * date when not rotatable) instead of the daily {prefix}{date}{suffix}.
+     * 
+     * @param maxFileSize the max (log) file size, 0 for no limit
+     */
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+    
+    public boolean isCompress() {
+        return compress;
+    }
+    
+    /**
+     * @param compress whether to (gzip) compress rotated log files
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+    
+    public int getMaxHistory() {
+        return maxHistory;
+    }
+    
+    /**
+     * @param maxHistory the number of rotated files to keep, 0 keeps all
+     */
+    public void setMaxHistory(int maxHistory) {
+        this.maxHistory = maxHistory;
+    }
+    
+    public boolean isAsync() {
+        return async;
+    }
+    
+    /**
+     * @param async whether to format and write records on a separate thread
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+        if ( ! async ) stopAsyncWriter();
+    }
+    
+    public int getQueueSize() {
+        return queueSize;
+    }
+    
+    /**
+     * @param queueSize the (max) number of records waiting to be written
+     * (applies when the async writer gets started)
+     */
+    public void setQueueSize(int queueSize) {
+        if ( queueSize <= 0 ) {
+            throw new IllegalArgumentException("queue size must be positive: " + queueSize);
+        }
+        this.queueSize = queueSize;
+    }
+    
+    public int getBatchSize() {
+        return batchSize;
+    }
+    
+    /**
+     * @param batchSize the max number of records written before flushing
+     */
+    public void setBatchSize(int batchSize) {
+        if ( batchSize <= 0 ) {
+            throw new IllegalArgumentException("batch size must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+    
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+    
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if ( overflowPolicy == null ) overflowPolicy = OverflowPolicy.BLOCK;
+        this.overflowPolicy = overflowPolicy;
+    }
+    
+    /**
+     * @return the number of (async) records dropped due an overflow
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+    
     private void setField(Field field, Object value) {
         try {
             field.set(this, value);
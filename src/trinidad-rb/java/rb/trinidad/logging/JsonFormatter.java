@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package rb.trinidad.logging;
+
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+import java.util.logging.Formatter;
+import java.util.logging.LogRecord;
+
+import static rb.trinidad.logging.LoggingHelpers.*;
+
+/**
+ * Formats log records as JSON, one (single-line) object per record e.g.
+ *
+ * <pre>
+ * {"timestamp":"2013-02-05T13:45:22.042Z","level":"INFO","logger":"...","context":"/foo","thread":1,"message":"..."}
+ * </pre>
+ *
+ * "logger", "context" and "thrown" (the stack trace) are omitted if not set.
+ *
+ * @author kares
+ */
+public class JsonFormatter extends Formatter {
+
+    private final DateFormatCache dateFormatCache;
+    private final boolean isoMillis; // append .SSSZ (UTC) to the time-stamp
+
+    /**
+     * Time-stamps in (ISO 8601) UTC e.g. "2013-02-05T13:45:22.042Z".
+     */
+    public JsonFormatter() {
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        dateFormat.setTimeZone( TimeZone.getTimeZone("UTC") );
+        this.dateFormatCache = new DateFormatCache(dateFormat);
+        this.isoMillis = true;
+    }
+
+    public JsonFormatter(String format) {
+        this(format, null);
+    }
+
+    public JsonFormatter(String format, String timeZone) {
+        if ( format == null ) {
+            throw new IllegalArgumentException("no format given");
+        }
+        final SimpleDateFormat dateFormat = new SimpleDateFormat(format);
+        if ( timeZone != null ) {
+            dateFormat.setTimeZone( TimeZone.getTimeZone(timeZone) );
+        }
+        this.dateFormatCache = new DateFormatCache(dateFormat);
+        this.isoMillis = false;
+    }
+
+    @Override
+    public String format(final LogRecord record) {
+        final StringBuilder json = acquireBuffer();
+        final long millis = record.getMillis();
+        json.append("{\"timestamp\":\"").append( dateFormatCache.format(millis) );
+        if ( isoMillis ) appendMillis(json, millis);
+        json.append("\",\"level\":\"").append( record.getLevel().getName() ).append('"');
+        final String logger = record.getLoggerName();
+        if ( logger != null ) {
+            appendString(json.append(",\"logger\":"), logger);
+            final String context = getContextName(logger);
+            if ( context != null ) appendString(json.append(",\"context\":"), context);
+        }
+        json.append(",\"thread\":").append( record.getThreadID() );
+        appendString(json.append(",\"message\":"), trimLineSeparator( formatMessage(record) ));
+        final Throwable thrown = record.getThrown();
+        if ( thrown != null ) {
+            final CharSequence trace = formatThrown(record);
+            if ( trace != null ) {
+                appendString(json.append(",\"thrown\":"), trimLineSeparator(trace));
+            }
+        }
+        json.append('}').append(LINE_SEPARATOR);
+        final String result = json.toString();
+        releaseBuffer(json);
+        return result;
+    }
+
+    private StackTraceFormatter stackTraceFormatter;
+
+    public StackTraceFormatter getStackTraceFormatter() {
+        return stackTraceFormatter;
+    }
+
+    /**
+     * @param stackTraceFormatter customized (thrown) stack trace rendering
+     */
+    public void setStackTraceFormatter(StackTraceFormatter stackTraceFormatter) {
+        this.stackTraceFormatter = stackTraceFormatter;
+    }
+
+    protected CharSequence formatThrown(final LogRecord record) {
+        return LoggingHelpers.formatThrown( record.getThrown(), stackTraceFormatter );
+    }
+
+    private static void appendMillis(final StringBuilder json, final long millis) {
+        int ms = (int) (millis % 1000); if ( ms < 0 ) ms += 1000;
+        json.append('.');
+        if ( ms < 100 ) json.append('0');
+        if ( ms < 10 ) json.append('0');
+        json.append(ms).append('Z');
+    }
+
+    private static CharSequence trimLineSeparator(final CharSequence str) {
+        int end = str.length();
+        while ( end > 0 ) {
+            final char c = str.charAt(end - 1);
+            if ( c != '\n' && c != '\r' ) break;
+            end--;
+        }
+        return end == str.length() ? str : str.subSequence(0, end);
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Appends a (quoted) JSON string.
+     * @param json the buffer
+     * @param str the (raw) string
+     */
+    static void appendString(final StringBuilder json, final CharSequence str) {
+        json.append('"');
+        final int len = str.length();
+        int start = 0; // append un-escaped chars in chunks
+        for ( int i = 0; i < len; i++ ) {
+            final char c = str.charAt(i);
+            final char escape;
+            switch ( c ) {
+                case '"'  : escape = '"';  break;
+                case '\\' : escape = '\\'; break;
+                case '\n' : escape = 'n';  break;
+                case '\r' : escape = 'r';  break;
+                case '\t' : escape = 't';  break;
+                case '\b' : escape = 'b';  break;
+                case '\f' : escape = 'f';  break;
+                default :
+                    // line/paragraph separators break (JavaScript) line parsers
+                    if ( c >= 0x20 && c != 0x2028 && c != 0x2029 ) continue;
+                    escape = 'u';
+            }
+            json.append(str, start, i).append('\\').append(escape);
+            if ( escape == 'u' ) {
+                json.append( HEX[(c >> 12) & 0xF] ).append( HEX[(c >> 8) & 0xF] )
+                    .append( HEX[(c >> 4) & 0xF] ).append( HEX[c & 0xF] );
+            }
+            start = i + 1;
+        }
+        json.append(str, start, len).append('"');
+    }
+
+}
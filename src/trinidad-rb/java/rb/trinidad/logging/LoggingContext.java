@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package rb.trinidad.logging;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A (web application) context as resolved from a logger name e.g.
+ * <code>org.apache.catalina.core.ContainerBase.[Tomcat].[localhost].[/foo]</code>
+ *
+ * <p>
+ * Contexts are resolved once (per logger name) and cached, each context
+ * carries it's own level that might be changed at runtime (the level is
+ * applied on the context's logger thus checked by JUL as usual).
+ * </p>
+ *
+ * @author kares
+ */
+public final class LoggingContext {
+
+    private static final String CONTAINER_LOGGER_PREFIX = "org.apache.catalina.core.ContainerBase.";
+
+    private static final int MAX_CACHED = 4096; // non-context logger names
+
+    // logger name -> context (or NONE for non-context loggers)
+    private static final ConcurrentMap<String, LoggingContext> contexts =
+        new ConcurrentHashMap<String, LoggingContext>();
+
+    // "host|name" -> context as well as "name" -> context (or AMBIGUOUS when
+    // the same context name has been resolved for more than one host)
+    private static final ConcurrentMap<String, LoggingContext> named =
+        new ConcurrentHashMap<String, LoggingContext>();
+
+    private static final LoggingContext NONE = new LoggingContext(null, null, null);
+    private static final LoggingContext AMBIGUOUS = new LoggingContext(null, null, null);
+
+    private final String loggerName;
+    private final String hostName;
+    private final String name;
+    private volatile Level level;
+
+    private LoggingContext(final String loggerName, final String hostName, final String name) {
+        this.loggerName = loggerName;
+        this.hostName = hostName;
+        this.name = name;
+    }
+
+    /**
+     * @return the logger name e.g. "org.apache.catalina.core.ContainerBase.[Tomcat].[localhost].[/foo]"
+     */
+    public String getLoggerName() {
+        return loggerName;
+    }
+
+    /**
+     * @return the host name e.g. "localhost" (null if not resolved)
+     */
+    public String getHostName() {
+        return hostName;
+    }
+
+    /**
+     * @return the context name e.g. "/foo"
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the (context specific) level or null if not set
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Changes the level for this context (including it's logger).
+     * @param level the new level (null to inherit)
+     */
+    public void setLevel(final Level level) {
+        this.level = level;
+        Logger.getLogger(loggerName).setLevel(level);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + name + "]";
+    }
+
+    /**
+     * @param loggerName the logger name
+     * @return the context for the given logger (name) or null if the logger
+     * does not belong to a context
+     */
+    public static LoggingContext forLogger(final String loggerName) {
+        if ( loggerName == null ) return null;
+        LoggingContext context = contexts.get(loggerName);
+        if ( context == null ) {
+            final String name = parseContextName(loggerName);
+            if ( name == null ) {
+                if ( contexts.size() >= MAX_CACHED ) return null;
+                context = NONE;
+            }
+            else {
+                context = new LoggingContext(loggerName, parseHostName(loggerName), name);
+            }
+            final LoggingContext existing = contexts.putIfAbsent(loggerName, context);
+            if ( existing != null ) context = existing;
+            else if ( context != NONE ) addNamed(context);
+        }
+        return context == NONE ? null : context;
+    }
+
+    private static void addNamed(final LoggingContext context) {
+        if ( context.hostName != null ) {
+            named.putIfAbsent(context.hostName + '|' + context.name, context);
+        }
+        final LoggingContext existing = named.putIfAbsent(context.name, context);
+        if ( existing != null && existing != context ) named.put(context.name, AMBIGUOUS);
+    }
+
+    /**
+     * @param name the context name e.g. "/foo"
+     * @return a (previously resolved) context for the given name, null if none
+     * or if contexts of the same name have been resolved for multiple hosts
+     * @see #forName(String, String)
+     */
+    public static LoggingContext forName(final String name) {
+        if ( name == null ) return null;
+        final LoggingContext context = named.get(name);
+        return context == AMBIGUOUS ? null : context;
+    }
+
+    /**
+     * @param hostName the host name e.g. "localhost" (null for any host)
+     * @param name the context name e.g. "/foo"
+     * @return a (previously resolved) context for the given host and name
+     */
+    public static LoggingContext forName(final String hostName, final String name) {
+        if ( hostName == null ) return forName(name);
+        if ( name == null ) return null;
+        return named.get(hostName + '|' + name);
+    }
+
+    static String parseContextName(final String logger) {
+        if ( ! logger.startsWith(CONTAINER_LOGGER_PREFIX) ) return null;
+        // e.g. org.apache.catalina.core.ContainerBase.[Tomcat].[localhost].[/foo]
+        // or org.apache.catalina.core.ContainerBase.[Tomcat].[localhost].[default]
+        final int end = logger.length() - 1;
+        if ( logger.charAt(end) != ']' ) return null;
+        final int i = logger.lastIndexOf('[') + 1; if ( i <= 0 ) return null;
+        return logger.substring(i, end);
+    }
+
+    static String parseHostName(final String logger) {
+        // e.g. org.apache.catalina.core.ContainerBase.[Tomcat].[localhost].[/foo]
+        final int i = logger.lastIndexOf("].[");
+        if ( i <= CONTAINER_LOGGER_PREFIX.length() ) return null;
+        final int start = logger.lastIndexOf('[', i) + 1; if ( start <= 0 ) return null;
+        return logger.substring(start, i);
+    }
+
+}
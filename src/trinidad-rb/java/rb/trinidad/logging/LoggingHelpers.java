@@ -23,9 +23,6 @@
 
 package rb.trinidad.logging;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
-
 /**
  * Logging helpers.
  *
@@ -34,25 +31,12 @@ import java.io.StringWriter;
 public abstract class LoggingHelpers {
 
     public static boolean isContextLogger(final String logger) {
-        if ( logger == null ) return false;
-        if ( ! logger.startsWith("org.apache.catalina.core.ContainerBase.") ) return false;
-        // e.g. org.apache.catalina.core.ContainerBase.[Tomcat].[localhost].[/foo]
-        // or org.apache.catalina.core.ContainerBase.[Tomcat].[localhost].[default]
-        final int end = logger.length() - 1;
-        if ( logger.charAt(end) != ']' ) return false;
-        final int i = logger.lastIndexOf('[') + 1; if ( i <= 0 ) return false;
-        return true;
+        return LoggingContext.forLogger(logger) != null;
     }
 
     public static String getContextName(final String logger) {
-        if ( logger == null ) return null;
-        if ( ! logger.startsWith("org.apache.catalina.core.ContainerBase.") ) return null;
-        // e.g. org.apache.catalina.core.ContainerBase.[Tomcat].[localhost].[/foo]
-        // or org.apache.catalina.core.ContainerBase.[Tomcat].[localhost].[default]
-        final int end = logger.length() - 1;
-        if ( logger.charAt(end) != ']' ) return null;
-        final int i = logger.lastIndexOf('[') + 1; if ( i <= 0 ) return null;
-        return logger.substring(i, end);
+        final LoggingContext context = LoggingContext.forLogger(logger);
+        return context == null ? null : context.getName();
     }
 
     public static CharSequence formatThrown(final Throwable thrown) {
@@ -63,15 +47,26 @@ public abstract class LoggingHelpers {
     }
 
     public static void formatThrown(final Throwable thrown, final StringBuilder buffer) {
+        formatThrown(thrown, buffer, null);
+    }
+
+    static CharSequence formatThrown(final Throwable thrown, final StackTraceFormatter formatter) {
+        if ( thrown == null ) return null;
+        final StringBuilder buffer = new StringBuilder(1024);
+        formatThrown(thrown, buffer, formatter);
+        return buffer;
+    }
+
+    static void formatThrown(final Throwable thrown, final StringBuilder buffer,
+        final StackTraceFormatter formatter) {
         if ( thrown == null ) return;
-        StringWriter stringWriter = new StringWriter(512);
-        PrintWriter printWriter = new PrintWriter(stringWriter);
-        thrown.printStackTrace(printWriter);
-        printWriter.println();
-        printWriter.close();
-        buffer.append( stringWriter.getBuffer() );
+        // same as printStackTrace() followed by an empty line :
+        ( formatter == null ? stackTraceFormatter : formatter ).format(thrown, buffer);
+        buffer.append(LINE_SEPARATOR);
     }
 
+    private static final StackTraceFormatter stackTraceFormatter = new StackTraceFormatter();
+
     static final String LINE_SEPARATOR = System.getProperty("line.separator");
 
     static boolean endsWithLineSeparator(final CharSequence msg) {
@@ -79,9 +74,34 @@ public abstract class LoggingHelpers {
         final String ls = LINE_SEPARATOR;
         if ( ls != null && len > ls.length() ) {
             final int end = len - ls.length();
-            return ls.equals( msg.subSequence(end, len) );
+            for ( int i = 0; i < ls.length(); i++ ) {
+                if ( msg.charAt(end + i) != ls.charAt(i) ) return false;
+            }
+            return true;
         }
         return false;
     }
 
+    private static final int BUFFER_SIZE = 256;
+    private static final int MAX_BUFFER_SIZE = 16 * 1024;
+
+    private static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>();
+
+    /**
+     * @return a (per-thread) re-usable buffer, should be released when done
+     * @see #releaseBuffer(StringBuilder)
+     */
+    static StringBuilder acquireBuffer() {
+        final StringBuilder buffer = buffers.get();
+        if ( buffer == null ) return new StringBuilder(BUFFER_SIZE);
+        buffers.set(null); // formatting might get re-entered (while in use)
+        return buffer;
+    }
+
+    static void releaseBuffer(final StringBuilder buffer) {
+        if ( buffer.capacity() > MAX_BUFFER_SIZE ) return; // do not hold big ones
+        buffer.setLength(0);
+        buffers.set(buffer);
+    }
+
 }
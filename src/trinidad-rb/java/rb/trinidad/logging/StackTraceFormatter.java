@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package rb.trinidad.logging;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders stack traces (the same way as {@link Throwable#printStackTrace()})
+ * directly into a buffer.
+ *
+ * <p>
+ * Optionally the number of frames printed (per throwable) can be limited, runs
+ * of (JRuby) interpreter frames folded and traces repeated within a time
+ * window printed only as a single line e.g.
+ * <code>java.lang.RuntimeException: 42 (same trace as 3s ago, repeated 412x)</code>
+ * </p>
+ *
+ * @author kares
+ */
+public class StackTraceFormatter {
+
+    private static final String CAUSE_CAPTION = "Caused by: ";
+    private static final String SUPPRESSED_CAPTION = "Suppressed: ";
+
+    private static final StackTraceElement[] NO_TRACE = new StackTraceElement[0];
+
+    private static final int FOLD_MIN = 3; // fold runs of at least 3 frames
+    private static final int MAX_REPEATS = 1024; // max remembered traces
+
+    private int maxFrames = 0;
+    private boolean foldFrames = false;
+    private long repeatWindow = 0;
+
+    private final Map<Long, Repeat> repeats = new ConcurrentHashMap<Long, Repeat>();
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    /**
+     * @param maxFrames the max number of frames printed for a throwable (and
+     * each of it's causes), 0 for no limit
+     */
+    public void setMaxFrames(int maxFrames) {
+        this.maxFrames = maxFrames;
+    }
+
+    public boolean isFoldFrames() {
+        return foldFrames;
+    }
+
+    /**
+     * @param foldFrames whether to fold consecutive (JRuby) interpreter frames
+     */
+    public void setFoldFrames(boolean foldFrames) {
+        this.foldFrames = foldFrames;
+    }
+
+    public long getRepeatWindow() {
+        return repeatWindow;
+    }
+
+    /**
+     * @param repeatWindow (millis) an identical trace is only printed once
+     * within the given time window, 0 to always print
+     */
+    public void setRepeatWindow(long repeatWindow) {
+        this.repeatWindow = repeatWindow;
+    }
+
+    public CharSequence format(final Throwable thrown) {
+        if ( thrown == null ) return null;
+        final StringBuilder buffer = new StringBuilder(1024);
+        format(thrown, buffer);
+        return buffer;
+    }
+
+    public void format(final Throwable thrown, final StringBuilder buffer) {
+        if ( thrown == null ) return;
+        if ( hasCustomPrintStackTrace( thrown.getClass() ) ) {
+            StringWriter stringWriter = new StringWriter(512);
+            PrintWriter printWriter = new PrintWriter(stringWriter);
+            thrown.printStackTrace(printWriter);
+            printWriter.close();
+            buffer.append( stringWriter.getBuffer() );
+            return;
+        }
+
+        final StackTraceElement[] trace = thrown.getStackTrace();
+        if ( repeatWindow > 0 && isRepeated(thrown, trace, buffer) ) return;
+
+        final Map<Throwable, Boolean> dejaVu = new IdentityHashMap<Throwable, Boolean>(4);
+        dejaVu.put(thrown, Boolean.TRUE);
+        buffer.append(thrown).append(LoggingHelpers.LINE_SEPARATOR);
+        appendFrames(buffer, trace, trace.length - 1, "");
+        appendSuppressed(buffer, thrown, trace, "\t", dejaVu);
+        final Throwable cause = thrown.getCause();
+        if ( cause != null ) appendEnclosed(buffer, cause, trace, CAUSE_CAPTION, "", dejaVu);
+    }
+
+    private void appendEnclosed(final StringBuilder buffer,
+        final Throwable thrown, final StackTraceElement[] enclosingTrace,
+        final String caption, final String prefix, final Map<Throwable, Boolean> dejaVu) {
+        final String ls = LoggingHelpers.LINE_SEPARATOR;
+        if ( dejaVu.containsKey(thrown) ) {
+            buffer.append(prefix).append(caption).append("[CIRCULAR REFERENCE: ").
+                   append(thrown).append(']').append(ls);
+            return;
+        }
+        dejaVu.put(thrown, Boolean.TRUE);
+
+        final StackTraceElement[] trace = thrown.getStackTrace();
+        int m = trace.length - 1, n = enclosingTrace.length - 1;
+        while ( m >= 0 && n >= 0 && trace[m].equals(enclosingTrace[n]) ) {
+            m--; n--;
+        }
+        final int framesInCommon = trace.length - 1 - m;
+
+        buffer.append(prefix).append(caption).append(thrown).append(ls);
+        appendFrames(buffer, trace, m, prefix);
+        if ( framesInCommon != 0 ) {
+            buffer.append(prefix).append("\t... ").append(framesInCommon).append(" more").append(ls);
+        }
+        appendSuppressed(buffer, thrown, trace, prefix + '\t', dejaVu);
+        final Throwable cause = thrown.getCause();
+        if ( cause != null ) appendEnclosed(buffer, cause, trace, CAUSE_CAPTION, prefix, dejaVu);
+    }
+
+    private void appendSuppressed(final StringBuilder buffer,
+        final Throwable thrown, final StackTraceElement[] trace,
+        final String prefix, final Map<Throwable, Boolean> dejaVu) {
+        final Throwable[] suppressed = getSuppressed(thrown);
+        for ( int i = 0; i < suppressed.length; i++ ) {
+            appendEnclosed(buffer, suppressed[i], trace, SUPPRESSED_CAPTION, prefix, dejaVu);
+        }
+    }
+
+    private void appendFrames(final StringBuilder buffer,
+        final StackTraceElement[] trace, final int last, final String prefix) {
+        final String ls = LoggingHelpers.LINE_SEPARATOR;
+        final int maxFrames = this.maxFrames;
+        final boolean foldFrames = this.foldFrames;
+        int printed = 0;
+        for ( int i = 0; i <= last; i++ ) {
+            if ( maxFrames > 0 && printed == maxFrames ) {
+                buffer.append(prefix).append("\t... ").append(last + 1 - i).
+                       append(" frames omitted").append(ls);
+                return;
+            }
+            if ( foldFrames && isInterpreterFrame(trace[i]) ) {
+                int end = i + 1; // fold [i + 1, end)
+                while ( end <= last && isInterpreterFrame(trace[end]) ) end++;
+                if ( end - i >= FOLD_MIN ) {
+                    appendFrame(buffer.append(prefix).append("\tat "), trace[i]).append(ls);
+                    buffer.append(prefix).append("\t... ").append(end - i - 1).
+                           append(" interpreter frames folded").append(ls);
+                    printed++; i = end - 1; continue;
+                }
+            }
+            appendFrame(buffer.append(prefix).append("\tat "), trace[i]).append(ls);
+            printed++;
+        }
+    }
+
+    // same as StackTraceElement#toString (without the Java 9+ module info)
+    private static StringBuilder appendFrame(final StringBuilder buffer, final StackTraceElement frame) {
+        buffer.append( frame.getClassName() ).append('.').append( frame.getMethodName() );
+        final String fileName = frame.getFileName();
+        final int lineNumber = frame.getLineNumber();
+        if ( frame.isNativeMethod() ) return buffer.append("(Native Method)");
+        if ( fileName == null ) return buffer.append("(Unknown Source)");
+        buffer.append('(').append(fileName);
+        if ( lineNumber >= 0 ) buffer.append(':').append(lineNumber);
+        return buffer.append(')');
+    }
+
+    static boolean isInterpreterFrame(final StackTraceElement frame) {
+        final String className = frame.getClassName();
+        return className.startsWith("org.jruby.") ||
+               className.startsWith("sun.reflect.") ||
+               className.startsWith("jdk.internal.reflect.") ||
+               className.startsWith("java.lang.reflect.") ||
+               className.startsWith("java.lang.invoke.");
+    }
+
+    private boolean isRepeated(final Throwable thrown,
+        final StackTraceElement[] trace, final StringBuilder buffer) {
+        final Long hash = traceHash(thrown, trace);
+        final long now = System.currentTimeMillis();
+        Repeat repeat = repeats.get(hash);
+        if ( repeat == null || now - repeat.since >= repeatWindow ) {
+            if ( repeats.size() >= MAX_REPEATS ) repeats.clear(); // keep it bounded
+            repeats.put(hash, new Repeat(now));
+            return false;
+        }
+        final int count = repeat.count.incrementAndGet();
+        buffer.append(thrown).append(" (same trace as ").
+               append( (now - repeat.since) / 1000 ).append("s ago, repeated ").
+               append(count).append("x)").append(LoggingHelpers.LINE_SEPARATOR);
+        return true;
+    }
+
+    // NOTE: the message is part of the hash (same as printed for the first line)
+    private static long traceHash(Throwable thrown, StackTraceElement[] trace) {
+        long hash = 17; int depth = 0;
+        while ( thrown != null && depth++ < 16 ) {
+            hash = 31 * hash + thrown.getClass().getName().hashCode();
+            final String message = thrown.getMessage();
+            hash = 31 * hash + ( message == null ? 0 : message.hashCode() );
+            for ( int i = 0; i < trace.length; i++ ) {
+                hash = 31 * hash + trace[i].hashCode();
+            }
+            thrown = thrown.getCause();
+            trace = thrown == null ? NO_TRACE : thrown.getStackTrace();
+        }
+        return hash;
+    }
+
+    private static final class Repeat {
+
+        final long since; // when the (full) trace got printed
+        final AtomicInteger count = new AtomicInteger(0);
+
+        Repeat(final long since) { this.since = since; }
+
+    }
+
+    private static final Method getSuppressed;
+    static {
+        Method method;
+        try { // since Java 7
+            method = Throwable.class.getMethod("getSuppressed");
+        }
+        catch (NoSuchMethodException e) { method = null; }
+        getSuppressed = method;
+    }
+
+    private static final Throwable[] NO_SUPPRESSED = new Throwable[0];
+
+    private static Throwable[] getSuppressed(final Throwable thrown) {
+        if ( getSuppressed == null ) return NO_SUPPRESSED;
+        try {
+            return (Throwable[]) getSuppressed.invoke(thrown);
+        }
+        catch (Exception e) {
+            return NO_SUPPRESSED;
+        }
+    }
+
+    // (weak) class keys - not to hold on to (web-app) class loaders
+    private static final class ClassKey extends WeakReference<Class<?>> {
+
+        private final int hash;
+
+        ClassKey(final Class<?> klass, final ReferenceQueue<Class<?>> queue) {
+            super(klass, queue);
+            this.hash = System.identityHashCode(klass);
+        }
+
+        @Override
+        public int hashCode() { return hash; }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if ( obj == this ) return true;
+            if ( ! (obj instanceof ClassKey) ) return false;
+            final Class<?> klass = get();
+            return klass != null && klass == ((ClassKey) obj).get();
+        }
+
+    }
+
+    private static final ConcurrentHashMap<ClassKey, Boolean> customPrintStackTrace =
+        new ConcurrentHashMap<ClassKey, Boolean>();
+    private static final ReferenceQueue<Class<?>> collectedClasses =
+        new ReferenceQueue<Class<?>>();
+
+    // if printStackTrace(PrintWriter) is overridden we'll use it
+    private static boolean hasCustomPrintStackTrace(final Class<?> klass) {
+        Boolean custom = customPrintStackTrace.get(new ClassKey(klass, null));
+        if ( custom == null ) {
+            try {
+                Method method = klass.getMethod("printStackTrace", PrintWriter.class);
+                custom = method.getDeclaringClass() != Throwable.class;
+            }
+            catch (NoSuchMethodException e) { custom = Boolean.FALSE; }
+            // expunge entries of collected classes
+            Reference<? extends Class<?>> collected;
+            while ( ( collected = collectedClasses.poll() ) != null ) {
+                customPrintStackTrace.remove(collected);
+            }
+            customPrintStackTrace.put(new ClassKey(klass, collectedClasses), custom);
+        }
+        return custom;
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package rb.trinidad.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An in-memory (size bounded) cache for static assets, each asset holds it's
+ * bytes and (if worth it) a gzip-ed variant of the content.
+ *
+ * <p>
+ * Eviction is an approximate LRU : once the (max) size is exceeded the least
+ * recently accessed assets are removed until the cache shrinks below 90%.
+ * </p>
+ *
+ * @author kares
+ */
+public class AssetCache {
+
+    public static final long DEFAULT_MAX_SIZE = 10 * 1024 * 1024; // 10MB
+    public static final int DEFAULT_OBJECT_MAX_SIZE = 512 * 1024; // 512kB
+
+    static final int GZIP_MIN_SIZE = 256; // do not bother compressing less
+
+    private final ConcurrentMap<String, Asset> assets = new ConcurrentHashMap<String, Asset>();
+
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final long maxSize;
+    private final int objectMaxSize;
+
+    private final Object evictLock = new Object();
+
+    public AssetCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_OBJECT_MAX_SIZE);
+    }
+
+    public AssetCache(long maxSize, int objectMaxSize) {
+        if ( maxSize <= 0 ) {
+            throw new IllegalArgumentException("max size: " + maxSize + " (expected > 0)");
+        }
+        this.maxSize = maxSize;
+        this.objectMaxSize = (int) Math.min(objectMaxSize, maxSize);
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public int getObjectMaxSize() {
+        return objectMaxSize;
+    }
+
+    /**
+     * @return the (approximate) size of the cached content in bytes
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    public int getCount() {
+        return assets.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public boolean isCacheable(final long length) {
+        return length >= 0 && length <= objectMaxSize;
+    }
+
+    public boolean contains(final String path) {
+        return assets.containsKey(path);
+    }
+
+    /**
+     * @param path the (resource) path
+     * @param lastModified last modified time-stamp of the resource
+     * @param length the resource (content) length
+     * @return cached asset (if it's not stale) or null
+     */
+    Asset get(final String path, final long lastModified, final long length) {
+        final Asset asset = assets.get(path);
+        if ( asset == null ) {
+            missCount.incrementAndGet(); return null;
+        }
+        if ( asset.lastModified != lastModified || asset.content.length != length ) {
+            remove(path, asset); // stale
+            missCount.incrementAndGet(); return null;
+        }
+        asset.lastAccess = System.nanoTime();
+        hitCount.incrementAndGet();
+        return asset;
+    }
+
+    Asset put(final Asset asset) {
+        final Asset previous = assets.put(asset.path, asset);
+        size.addAndGet( asset.size() - ( previous == null ? 0 : previous.size() ) );
+        if ( size.get() > maxSize ) evict();
+        return asset;
+    }
+
+    public void remove(final String path) {
+        final Asset asset = assets.get(path);
+        if ( asset != null ) remove(path, asset);
+    }
+
+    private void remove(final String path, final Asset asset) {
+        if ( assets.remove(path, asset) ) size.addAndGet( - asset.size() );
+    }
+
+    public void clear() {
+        for ( final String path : assets.keySet() ) remove(path);
+    }
+
+    private void evict() {
+        synchronized (evictLock) {
+            if ( size.get() <= maxSize ) return; // evicted concurrently
+            // NOTE: lastAccess keeps changing (concurrent gets) - sort a snapshot
+            final Asset[] assets = this.assets.values().toArray( new Asset[0] );
+            final Candidate[] candidates = new Candidate[assets.length];
+            for ( int i = 0; i < assets.length; i++ ) candidates[i] = new Candidate(assets[i]);
+            Arrays.sort(candidates, LEAST_RECENTLY_ACCESSED);
+            final long targetSize = maxSize - maxSize / 10;
+            for ( int i = 0; i < candidates.length && size.get() > targetSize; i++ ) {
+                final Asset asset = candidates[i].asset;
+                remove( asset.path, asset );
+            }
+        }
+    }
+
+    private static final class Candidate {
+
+        final Asset asset;
+        final long lastAccess;
+
+        Candidate(final Asset asset) {
+            this.asset = asset; this.lastAccess = asset.lastAccess;
+        }
+
+    }
+
+    private static final Comparator<Candidate> LEAST_RECENTLY_ACCESSED = new Comparator<Candidate>() {
+        public int compare(final Candidate candidate1, final Candidate candidate2) {
+            final long diff = candidate1.lastAccess - candidate2.lastAccess; // nanoTime
+            return diff < 0 ? -1 : ( diff == 0 ? 0 : 1 );
+        }
+    };
+
+    /**
+     * A cached static asset.
+     */
+    static final class Asset {
+
+        final String path;
+        final byte[] content;
+        final byte[] gzipContent; // null if not compressed
+        final long lastModified;
+        final String contentType;
+
+        volatile long lastAccess;
+
+        Asset(String path, byte[] content, byte[] gzipContent,
+              long lastModified, String contentType) {
+            this.path = path;
+            this.content = content;
+            this.gzipContent = gzipContent;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.lastAccess = System.nanoTime();
+        }
+
+        long size() {
+            return content.length + ( gzipContent == null ? 0 : gzipContent.length ) + 2 * path.length();
+        }
+
+    }
+
+    /**
+     * @param contentType the content (mime) type
+     * @return true for content types that are worth compressing (text-based)
+     */
+    static boolean isCompressible(final String contentType) {
+        if ( contentType == null ) return false;
+        if ( contentType.startsWith("text/") ) return true;
+        return contentType.contains("javascript") || contentType.contains("json") ||
+               contentType.contains("xml") || contentType.startsWith("image/svg") ||
+               contentType.equals("application/vnd.ms-fontobject") ||
+               contentType.equals("font/ttf") || contentType.equals("application/x-font-ttf");
+    }
+
+    /**
+     * @return gzip-ed content or null if compressing does not save at least 10%
+     */
+    static byte[] gzip(final byte[] content) throws IOException {
+        if ( content.length < GZIP_MIN_SIZE ) return null;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 2);
+        final GZIPOutputStream gzip = new GZIPOutputStream(bytes, 8192);
+        gzip.write(content); gzip.close();
+        if ( bytes.size() > content.length - content.length / 10 ) return null;
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param acceptEncoding the Accept-Encoding header value
+     * @return whether gzip is acceptable (e.g. "gzip, deflate" but not "gzip;q=0")
+     */
+    static boolean acceptsGzip(final String acceptEncoding) {
+        if ( acceptEncoding == null ) return false;
+        int start = 0; final int len = acceptEncoding.length();
+        while ( start < len ) {
+            int end = acceptEncoding.indexOf(',', start);
+            if ( end == -1 ) end = len;
+            int semi = acceptEncoding.indexOf(';', start);
+            if ( semi == -1 || semi > end ) semi = end;
+            final String coding = acceptEncoding.substring(start, semi).trim();
+            if ( coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip") ) {
+                return ! isZeroQuality(acceptEncoding.substring(semi, end));
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private static boolean isZeroQuality(String params) {
+        final int q = params.indexOf("q=");
+        if ( q == -1 ) return false;
+        params = params.substring(q + 2).trim();
+        try {
+            return Double.parseDouble(params) <= 0;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+}
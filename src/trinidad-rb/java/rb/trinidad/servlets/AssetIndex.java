@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package rb.trinidad.servlets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * An index of (public) files with pre-computed strong (content hash based)
+ * ETags, lengths and last modified dates.
+ *
+ * <p>
+ * The index is built on a background thread and re-scanned periodically
+ * (changed files are detected by their length and modification time).
+ * Between scans an entry might be stale, use {@link Entry#isCurrent()} to
+ * check it against the file before relying on it's ETag.
+ * </p>
+ *
+ * @author kares
+ */
+public class AssetIndex {
+
+    private static final Log log = LogFactory.getLog(AssetIndex.class);
+
+    public static final long DEFAULT_SCAN_INTERVAL = 5000; // 5 secs
+
+    static final long MAX_HASHED_SIZE = 64 * 1024 * 1024; // 64MB
+    static final int MAX_DEPTH = 32;
+
+    private final File root;
+    private final String prefix;
+    private final long scanInterval;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final Set<String> directories =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile boolean complete = false;
+
+    private volatile Thread scanner;
+
+    /**
+     * @param root the (public) root directory
+     * @param prefix the path prefix for (relative) paths in the index
+     * @param scanInterval re-scan interval in millis (0 to scan only once)
+     */
+    public AssetIndex(final File root, final String prefix, final long scanInterval) {
+        this.root = root;
+        this.prefix = prefix == null ? "" : prefix;
+        this.scanInterval = scanInterval;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public long getScanInterval() {
+        return scanInterval;
+    }
+
+    /**
+     * @return whether a (full) scan has completed, if a directory could not
+     * be listed the index is incomplete
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * @param path the (prefixed) path e.g. "/public/images/rails.png"
+     * @return an index entry or null if not (yet) indexed
+     */
+    public Entry get(final String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * @param path the (prefixed) path e.g. "/public/images/" or "/public/favicon.ico"
+     * @return whether the path is a known file or directory
+     */
+    public boolean contains(final String path) {
+        if ( entries.containsKey(path) ) return true;
+        int end = path.length();
+        while ( end > 0 && path.charAt(end - 1) == '/' ) end--;
+        if ( end == prefix.length() ) return path.startsWith(prefix); // root
+        return directories.contains( end == path.length() ? path : path.substring(0, end) );
+    }
+
+    public synchronized void start() {
+        if ( scanner != null ) return;
+        final Thread thread = new Thread("Trinidad-AssetIndex[" + root.getName() + "]") {
+            @Override
+            public void run() {
+                while ( scanner == this ) {
+                    try {
+                        scan();
+                    }
+                    catch (RuntimeException e) {
+                        log.warn("failed scanning " + root, e);
+                    }
+                    if ( scanInterval <= 0 ) break;
+                    try {
+                        Thread.sleep(scanInterval);
+                    }
+                    catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        scanner = thread;
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        final Thread thread = scanner;
+        scanner = null;
+        if ( thread != null ) thread.interrupt();
+    }
+
+    /**
+     * (Re-)Scan the root directory, updating changed entries.
+     */
+    public void scan() {
+        final Set<String> seen = new HashSet<String>(entries.size() + 16);
+        final Set<String> seenDirectories = new HashSet<String>(directories.size() + 8);
+        final boolean full = scan(root, prefix, seen, seenDirectories, 0);
+        if ( entries.size() > seen.size() ) {
+            entries.keySet().retainAll(seen); // removed files
+        }
+        directories.addAll(seenDirectories);
+        if ( directories.size() > seenDirectories.size() ) {
+            directories.retainAll(seenDirectories);
+        }
+        complete = full;
+    }
+
+    private boolean scan(final File dir, final String path,
+        final Set<String> seen, final Set<String> seenDirectories, final int depth) {
+        final File[] files = dir.listFiles();
+        if ( files == null || depth > MAX_DEPTH ) return false;
+        boolean full = true;
+        for ( final File file : files ) {
+            final String filePath = path + '/' + file.getName();
+            if ( file.isDirectory() ) {
+                seenDirectories.add(filePath);
+                full &= scan(file, filePath, seen, seenDirectories, depth + 1); continue;
+            }
+            final long length = file.length();
+            final long lastModified = file.lastModified();
+            final Entry entry = entries.get(filePath);
+            if ( entry == null || entry.length != length || entry.lastModified != lastModified ) {
+                entries.put(filePath, new Entry(file, length, lastModified, computeETag(file, length)));
+            }
+            seen.add(filePath);
+        }
+        return full;
+    }
+
+    private static String computeETag(final File file, final long length) {
+        if ( length > MAX_HASHED_SIZE ) return null;
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final byte[] buffer = new byte[8192];
+        try {
+            final InputStream input = new FileInputStream(file);
+            try {
+                int read;
+                while ( ( read = input.read(buffer) ) != -1 ) digest.update(buffer, 0, read);
+            }
+            finally {
+                input.close();
+            }
+        }
+        catch (IOException e) {
+            log.debug("failed hashing " + file, e);
+            return null;
+        }
+        final byte[] hash = digest.digest();
+        final StringBuilder etag = new StringBuilder(hash.length * 2 + 2).append('"');
+        for ( final byte b : hash ) {
+            etag.append( Character.forDigit((b >> 4) & 0xF, 16) ).append( Character.forDigit(b & 0xF, 16) );
+        }
+        return etag.append('"').toString();
+    }
+
+    /**
+     * An indexed file.
+     */
+    public static final class Entry {
+
+        final File file;
+        final long length;
+        final long lastModified;
+        final String etag; // null if not computed
+
+        Entry(File file, long length, long lastModified, String etag) {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.etag = etag;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the strong ETag (content hash) e.g. "\"5eb63bbbe01eeed093cb22bb8f5acdc3\""
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * @return false if the file changed (or got deleted) since indexed
+         */
+        public boolean isCurrent() {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package rb.trinidad.servlets;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves (public) asset paths to be pre-loaded on start, either from an
+ * asset pipeline manifest or the smallest files in the public directory.
+ *
+ * @author kares
+ */
+final class AssetWarmUp {
+
+    private AssetWarmUp() { /* static only */ }
+
+    static final int MAX_DEPTH = 16;
+
+    /**
+     * @param publicDir the public root directory
+     * @param prefix the path prefix (public root) e.g. "/public"
+     * @param limit max number of paths returned
+     * @return (prefixed) paths to warm up
+     */
+    static List<String> resolvePaths(final File publicDir, final String prefix, final int limit) {
+        final List<String> paths = manifestPaths(publicDir, prefix);
+        if ( ! paths.isEmpty() ) {
+            return paths.size() > limit ? paths.subList(0, limit) : paths;
+        }
+        return smallestPaths(publicDir, prefix, limit);
+    }
+
+    private static final Pattern JSON_PAIR = Pattern.compile("\"([^\"]+)\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern YAML_PAIR = Pattern.compile("^\\s*([^:#\\s]+)\\s*:\\s*([^\\s#]+)\\s*$");
+
+    /**
+     * Sprockets manifests : public/assets/manifest(-digest).json,
+     * public/assets/.sprockets-manifest(-digest).json or (Rails 3.x)
+     * public/assets/manifest.yml - the logical to digest-ed "assets" mapping
+     * is used.
+     */
+    static List<String> manifestPaths(final File publicDir, final String prefix) {
+        final File assetsDir = new File(publicDir, "assets");
+        final File[] manifests = assetsDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return ( name.startsWith("manifest") || name.startsWith(".sprockets-manifest") ) &&
+                       ( name.endsWith(".json") || name.endsWith(".yml") );
+            }
+        });
+        if ( manifests == null || manifests.length == 0 ) return Collections.emptyList();
+        Arrays.sort(manifests, new Comparator<File>() { // newest first
+            public int compare(File file1, File file2) {
+                final long diff = file2.lastModified() - file1.lastModified();
+                return diff < 0 ? -1 : ( diff == 0 ? 0 : 1 );
+            }
+        });
+
+        final String assetsPath = ( prefix == null ? "" : prefix ) + "/assets/";
+        final Set<String> paths = new LinkedHashSet<String>();
+        final File manifest = manifests[0];
+        try {
+            final String content = readFile(manifest);
+            if ( manifest.getName().endsWith(".yml") ) {
+                for ( final String line : content.split("\n") ) {
+                    final Matcher matcher = YAML_PAIR.matcher(line);
+                    if ( matcher.matches() ) paths.add( assetsPath + matcher.group(2) );
+                }
+            }
+            else {
+                int start = content.indexOf("\"assets\"");
+                if ( start == -1 ) return Collections.emptyList();
+                start = content.indexOf('{', start);
+                final int end = content.indexOf('}', start);
+                if ( start == -1 || end == -1 ) return Collections.emptyList();
+                final Matcher matcher = JSON_PAIR.matcher( content.substring(start, end) );
+                while ( matcher.find() ) paths.add( assetsPath + matcher.group(2) );
+            }
+        }
+        catch (IOException e) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<String>(paths);
+    }
+
+    static List<String> smallestPaths(final File publicDir, final String prefix, final int limit) {
+        final List<PublicFile> files = new ArrayList<PublicFile>();
+        collectFiles(publicDir, prefix == null ? "" : prefix, files, 0);
+        Collections.sort(files, SMALLEST_FIRST);
+        final List<String> paths = new ArrayList<String>(Math.min(limit, files.size()));
+        for ( int i = 0; i < files.size() && i < limit; i++ ) {
+            paths.add( files.get(i).path );
+        }
+        return paths;
+    }
+
+    private static void collectFiles(final File dir, final String path,
+        final List<PublicFile> files, final int depth) {
+        final File[] children = dir.listFiles();
+        if ( children == null || depth > MAX_DEPTH ) return;
+        for ( final File child : children ) {
+            final String childPath = path + '/' + child.getName();
+            if ( child.isDirectory() ) {
+                collectFiles(child, childPath, files, depth + 1);
+            }
+            else if ( ! child.getName().startsWith(".") ) {
+                files.add( new PublicFile(childPath, child.length()) );
+            }
+        }
+    }
+
+    private static final class PublicFile {
+
+        final String path;
+        final long length;
+
+        PublicFile(final String path, final long length) {
+            this.path = path; this.length = length;
+        }
+
+    }
+
+    private static final Comparator<PublicFile> SMALLEST_FIRST = new Comparator<PublicFile>() {
+        public int compare(final PublicFile file1, final PublicFile file2) {
+            return file1.length < file2.length ? -1 : ( file1.length == file2.length ? 0 : 1 );
+        }
+    };
+
+    private static String readFile(final File file) throws IOException {
+        final StringBuilder content = new StringBuilder((int) file.length());
+        final BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            final char[] buffer = new char[4096]; int read;
+            while ( ( read = reader.read(buffer) ) != -1 ) content.append(buffer, 0, read);
+        }
+        finally {
+            reader.close();
+        }
+        return content.toString();
+    }
+
+}
@@ -23,10 +23,39 @@
 
 package rb.trinidad.servlets;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.naming.directory.DirContext;
+import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
 
+import org.apache.catalina.Globals;
+import org.apache.naming.resources.BaseDirContext;
+import org.apache.naming.resources.CacheEntry;
 import org.apache.naming.resources.ProxyDirContext;
+import org.apache.naming.resources.Resource;
+import org.apache.naming.resources.ResourceAttributes;
 
 
 /**
@@ -35,6 +64,38 @@ import org.apache.naming.resources.ProxyDirContext;
  * <p>
  * This servlet (like it's super class) is intended to be mapped to <em>/</em> !
  * </p>
+ *
+ * <p>
+ * Optionally (small) assets are served from an in-memory {@link AssetCache}
+ * with a gzip-ed variant (for compressible types, served with it's own ETag)
+ * picked based on the request's <em>Accept-Encoding</em> header.
+ * </p>
+ *
+ * <p>
+ * Files larger than the <em>sendfile</em> size are handed off to the connector
+ * (zero-copy) when it supports sendfile (NIO/APR), bypassing the cache.
+ * </p>
+ *
+ * <p>
+ * An {@link AssetIndex} (if enabled) provides strong ETags and answers
+ * conditional requests for (indexed) public files with a 304 directly,
+ * optionally paths not in the index are responded with a 404 right away.
+ * </p>
+ *
+ * <p>
+ * (Multi-)Range requests for files are served using positional reads from a
+ * file channel (instead of skipping over a buffered stream per range).
+ * </p>
+ *
+ * <p>
+ * Fingerprinted assets (e.g. <em>/assets/application-[digest].js</em>) are
+ * served with far-future (immutable) caching headers and the digest as ETag.
+ * </p>
+ *
+ * <p>
+ * Assets might get pre-loaded (warmed up) on initialization, so that a
+ * (newly) started context does not serve it's first requests from disk.
+ * </p>
  * 
  * @author kares
  */
@@ -60,15 +121,628 @@ public class DefaultServlet extends org.apache.catalina.servlets.DefaultServlet
     public ProxyDirContext getResources() {
         return this.resources;
     }
+
+    private transient AssetCache assetCache;
+
+    public AssetCache getAssetCache() {
+        return this.assetCache;
+    }
+
+    public void setAssetCache(AssetCache assetCache) {
+        this.assetCache = assetCache;
+    }
     
     @Override
     public void init() throws ServletException {
         super.init();
-        String root = getServletConfig().getInitParameter("public.root");
-        if (root == null) {
-            root = getServletContext().getInitParameter("public.root");
+        setPublicRoot( getParameter("public.root") );
+
+        // public.sendfile_size (kB) files larger than this get served using
+        // sendfile (zero-copy) if supported by the connector (e.g. NIO/APR)
+        String sendfileSize = getParameter("public.sendfile_size");
+        if ( sendfileSize != null ) {
+            this.sendfileSize = Integer.parseInt(sendfileSize) * 1024;
+        }
+
+        // public.asset_cache_size (kB) enables the asset cache
+        String cacheSize = getParameter("public.asset_cache_size");
+        if ( cacheSize != null && Long.parseLong(cacheSize) > 0 ) {
+            String objectMaxSize = getParameter("public.asset_cache_object_max_size");
+            setAssetCache( new AssetCache(
+                Long.parseLong(cacheSize) * 1024,
+                objectMaxSize == null ? AssetCache.DEFAULT_OBJECT_MAX_SIZE :
+                    Integer.parseInt(objectMaxSize) * 1024
+            ) );
+        }
+
+        // public.immutable_assets (true or a path prefix such as "/assets")
+        String immutableAssets = getParameter("public.immutable_assets");
+        if ( immutableAssets != null && ! immutableAssets.equals("false") ) {
+            setImmutableAssetsPrefix( immutableAssets.equals("true") ? "/assets" : immutableAssets );
+        }
+
+        initAssetIndex();
+
+        // public.warm_up (true or the number of files to pre-load)
+        String warmUp = getParameter("public.warm_up");
+        if ( warmUp != null && ! warmUp.equals("false") ) {
+            warmUp( warmUp.equals("true") ? DEFAULT_WARM_UP_COUNT : Integer.parseInt(warmUp) );
+        }
+    }
+
+    static final int DEFAULT_WARM_UP_COUNT = 100;
+    static final long WARM_UP_TIMEOUT = 60 * 1000;
+
+    /**
+     * Pre-load (in parallel) assets listed in the asset pipeline manifest or
+     * the smallest public files into the resource (and asset) cache.
+     * This happens on init thus before the context is started.
+     * @param count max number of files to load
+     * @return the number of loaded files
+     */
+    protected int warmUp(final int count) {
+        final String publicRoot = getPublicRoot();
+        final String realPath = getServletContext().getRealPath(publicRoot == null ? "/" : publicRoot);
+        if ( count <= 0 || realPath == null ) return 0;
+
+        final long start = System.currentTimeMillis();
+        final List<String> paths = AssetWarmUp.resolvePaths(new File(realPath), publicRoot, count);
+        if ( paths.isEmpty() ) return 0;
+
+        final int threads = Math.min(paths.size(), Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "Trinidad-WarmUp-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final AtomicInteger loaded = new AtomicInteger();
+        try {
+            for ( final String path : paths ) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            if ( preload(path) ) loaded.incrementAndGet();
+                        }
+                        catch (Exception e) {
+                            if ( debug > 0 ) log("failed pre-loading: " + path, e);
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            if ( ! executor.awaitTermination(WARM_UP_TIMEOUT, TimeUnit.MILLISECONDS) ) {
+                log("warm-up did not finish in " + WARM_UP_TIMEOUT + "ms");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        log("warmed up " + loaded.get() + " (of " + paths.size() + ") files in " +
+            ( System.currentTimeMillis() - start ) + "ms");
+        return loaded.get();
+    }
+
+    private boolean preload(final String path) throws IOException {
+        final CacheEntry cacheEntry = resources.lookupCache(path);
+        if ( ! cacheEntry.exists || cacheEntry.context != null ) return false;
+        final AssetCache assetCache = this.assetCache;
+        if ( assetCache != null ) {
+            final long length = cacheEntry.attributes.getContentLength();
+            if ( assetCache.isCacheable(length) && ! assetCache.contains(path) ) {
+                final AssetCache.Asset asset = loadAsset(path, cacheEntry);
+                if ( asset != null ) assetCache.put(asset);
+            }
+        }
+        return true;
+    }
+
+    private transient AssetIndex assetIndex;
+
+    public AssetIndex getAssetIndex() {
+        return this.assetIndex;
+    }
+
+    public void setAssetIndex(AssetIndex assetIndex) {
+        this.assetIndex = assetIndex;
+    }
+
+    @SuppressWarnings("deprecation") // getDirContext()
+    private void initAssetIndex() {
+        // public.asset_index (true or a re-scan interval in millis)
+        final String index = getParameter("public.asset_index");
+        if ( index == null || index.equals("false") ) return;
+        final long interval = index.equals("true") ?
+            AssetIndex.DEFAULT_SCAN_INTERVAL : Long.parseLong(index);
+        final String publicRoot = getPublicRoot();
+        final String realPath = getServletContext().getRealPath(publicRoot == null ? "/" : publicRoot);
+        if ( realPath == null || ! new File(realPath).isDirectory() ) {
+            log("asset index disabled, public root not a directory: " + realPath);
+            return;
+        }
+        setAssetIndex( new AssetIndex(new File(realPath), publicRoot, interval) );
+        assetIndex.start();
+
+        // public.negative_lookup - (once indexed) do not look up missing files
+        if ( "true".equals( getParameter("public.negative_lookup") ) ) {
+            final DirContext dirContext = resources.getDirContext();
+            if ( dirContext instanceof BaseDirContext ) {
+                final String aliases = ((BaseDirContext) dirContext).getAliases();
+                if ( aliases != null && aliases.length() > 0 ) {
+                    log("negative lookup disabled, aliases are not indexed: " + aliases);
+                    return;
+                }
+            }
+            setNegativeLookup(true);
+        }
+    }
+
+    private transient boolean negativeLookup;
+
+    public boolean isNegativeLookup() {
+        return negativeLookup;
+    }
+
+    /**
+     * @param negativeLookup whether to respond with a 404 for paths not found
+     * in the (complete) asset index without looking up the resource
+     */
+    public void setNegativeLookup(boolean negativeLookup) {
+        this.negativeLookup = negativeLookup;
+    }
+
+    @Override
+    public void destroy() {
+        if ( assetIndex != null ) assetIndex.stop();
+        if ( assetCache != null ) assetCache.clear();
+        super.destroy();
+    }
+
+    /**
+     * @return init parameter value (falls back to a context parameter)
+     */
+    protected String getParameter(final String name) {
+        String value = getServletConfig().getInitParameter(name);
+        if ( value == null ) {
+            value = getServletContext().getInitParameter(name);
+        }
+        return value;
+    }
+
+    @Override
+    protected void serveResource(final HttpServletRequest request,
+        final HttpServletResponse response, final boolean content)
+        throws IOException, ServletException {
+        final AssetIndex assetIndex = this.assetIndex;
+        final String assetsPrefix = this.immutableAssetsPrefix;
+        if ( ( assetIndex != null || assetsPrefix != null ) && isPlainRequest(request, response) ) {
+            final String path = getRelativePath(request);
+            if ( assetIndex != null && negativeLookup &&
+                 assetIndex.isComplete() && ! assetIndex.contains(path) ) {
+                // e.g. a (Rack) route - no need to probe the file-system
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, request.getRequestURI());
+                return;
+            }
+            final String immutableETag = assetsPrefix == null ? null : getImmutableETag(path);
+            if ( immutableETag != null ) {
+                // fingerprinted (content can not change without the name changing)
+                if ( checkNotModified(request, response, immutableETag, -1) ) {
+                    response.setHeader("Cache-Control", IMMUTABLE_CACHE_CONTROL);
+                    return;
+                }
+                if ( applyETag(path, immutableETag, -1, -1) ) {
+                    response.setHeader("Cache-Control", IMMUTABLE_CACHE_CONTROL);
+                }
+            }
+            else if ( assetIndex != null ) {
+                final AssetIndex.Entry entry = assetIndex.get(path);
+                // changed since indexed - skip till re-scanned (default handling)
+                if ( entry != null && entry.etag != null && entry.isCurrent() ) {
+                    if ( checkNotModified(request, response, entry.etag, entry.lastModified) ) return;
+                    applyETag(path, entry.etag, entry.lastModified, entry.length);
+                }
+            }
+        }
+        final AssetCache assetCache = this.assetCache;
+        if ( assetCache == null || ! serveAsset(assetCache, request, response, content) ) {
+            super.serveResource(request, response, content);
+        }
+    }
+
+    /**
+     * @return true for GET/HEAD requests (not included, no error dispatch)
+     */
+    private static boolean isPlainRequest(final HttpServletRequest request,
+        final HttpServletResponse response) {
+        final String method = request.getMethod();
+        if ( ! "GET".equals(method) && ! "HEAD".equals(method) ) return false;
+        if ( request.getAttribute(RequestDispatcher.INCLUDE_REQUEST_URI) != null ) return false;
+        return response.getStatus() < HttpServletResponse.SC_BAD_REQUEST;
+    }
+
+    /**
+     * Answers conditional (If-None-Match / If-Modified-Since) requests
+     * (without looking up the resource).
+     * @param lastModified the last modified time or -1 if any If-Modified-Since
+     * should be considered as not modified (immutable content)
+     * @return true if a 304 response has been sent
+     */
+    private static boolean checkNotModified(final HttpServletRequest request,
+        final HttpServletResponse response, final String etag, final long lastModified) {
+        if ( request.getHeader("If-Match") != null ||
+             request.getHeader("If-Unmodified-Since") != null ) return false;
+
+        String matchedETag = etag;
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if ( ifNoneMatch != null ) {
+            if ( ( matchedETag = matchETag(ifNoneMatch, etag) ) == null ) return false;
+        }
+        else {
+            final long ifModifiedSince;
+            try {
+                ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            }
+            catch (IllegalArgumentException e) {
+                return false;
+            }
+            if ( ifModifiedSince == -1 ) return false;
+            if ( lastModified != -1 && lastModified >= ifModifiedSince + 1000 ) return false;
+        }
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        response.setHeader("ETag", matchedETag);
+        return true;
+    }
+
+    @Override
+    protected boolean checkIfNoneMatch(final HttpServletRequest request,
+        final HttpServletResponse response, final ResourceAttributes attributes)
+        throws IOException {
+        // same as super but the tag of a gzip-ed (cached) variant matches as well
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if ( ifNoneMatch == null ) return true;
+        final String etag = matchETag(ifNoneMatch, attributes.getETag());
+        if ( etag == null ) return true;
+        final String method = request.getMethod();
+        if ( "GET".equals(method) || "HEAD".equals(method) ) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            response.setHeader("ETag", etag);
+        }
+        else {
+            response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+        }
+        return false;
+    }
+
+    static boolean matchesETag(final String header, final String etag) {
+        return matchETag(header, etag) != null;
+    }
+
+    /**
+     * (Weak) comparison of the If-None-Match (list) with an entity tag.
+     * @return the matched tag - the given one or it's gzip variant, null if
+     * none of the listed tags matches
+     * @see #gzipETag(String)
+     */
+    static String matchETag(final String header, final String etag) {
+        final String opaqueTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+        int start = 0; final int len = header.length();
+        while ( start < len ) {
+            int end = header.indexOf(',', start);
+            if ( end == -1 ) end = len;
+            String tag = header.substring(start, end).trim();
+            if ( tag.equals("*") ) return etag;
+            if ( tag.startsWith("W/") ) tag = tag.substring(2);
+            if ( tag.equals(opaqueTag) ) return etag;
+            if ( tag.endsWith(GZIP_ETAG_SUFFIX + '"') && tag.equals(gzipETag(opaqueTag)) ) {
+                return gzipETag(etag);
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    static final String GZIP_ETAG_SUFFIX = "-gz";
+
+    /**
+     * The gzip-ed content is a different representation, thus it needs a
+     * different (strong) validator than the identity content.
+     * @param etag e.g. "\"5eb63bbbe01eeed093cb22bb8f5acdc3\""
+     * @return the gzip variant tag e.g. "\"5eb63bbbe01eeed093cb22bb8f5acdc3-gz\""
+     */
+    static String gzipETag(final String etag) {
+        if ( etag == null ) return null;
+        if ( ! etag.endsWith("\"") ) return etag + GZIP_ETAG_SUFFIX;
+        return etag.substring(0, etag.length() - 1) + GZIP_ETAG_SUFFIX + '"';
+    }
+
+    /**
+     * Make sure the (strong) ETag is used for the resource (if not changed).
+     * @param lastModified expected last modified time (or -1)
+     * @param length expected length (or -1)
+     * @return false if the resource (file) does not exist
+     */
+    private boolean applyETag(final String path, final String etag,
+        final long lastModified, final long length) {
+        final CacheEntry cacheEntry = resources.lookupCache(path);
+        if ( cacheEntry.exists && cacheEntry.context == null ) {
+            final ResourceAttributes attributes = cacheEntry.attributes;
+            if ( ( lastModified == -1 || attributes.getLastModified() == lastModified ) &&
+                 ( length == -1 || attributes.getContentLength() == length ) ) {
+                attributes.setETag(etag);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    private static final Pattern FINGERPRINT = Pattern.compile("-([0-9a-f]{32,64})\\.");
+    private static final int MAX_FINGERPRINTS = 10000;
+
+    private transient String immutableAssetsPrefix;
+    // path -> ETag (or "" if not a fingerprinted path)
+    private final transient ConcurrentHashMap<String, String> fingerprints =
+        new ConcurrentHashMap<String, String>();
+
+    public String getImmutableAssetsPrefix() {
+        return immutableAssetsPrefix;
+    }
+
+    /**
+     * @param prefix (public root relative) path prefix for fingerprinted assets
+     * e.g. "/assets" or null to disable immutable (far-future) caching
+     */
+    public void setImmutableAssetsPrefix(String prefix) {
+        if ( prefix != null ) {
+            if ( ! prefix.startsWith("/") ) prefix = "/" + prefix;
+            if ( ! prefix.endsWith("/") ) prefix = prefix + "/";
+            final String publicRoot = getPublicRoot();
+            if ( publicRoot != null ) prefix = publicRoot + prefix;
+        }
+        this.immutableAssetsPrefix = prefix;
+        fingerprints.clear();
+    }
+
+    /**
+     * @param path the (resource) path e.g. "/public/assets/application-9f86d08....js"
+     * @return the ETag (digest) for a fingerprinted asset path or null
+     */
+    protected String getImmutableETag(final String path) {
+        if ( ! path.startsWith(immutableAssetsPrefix) ) return null;
+        String etag = fingerprints.get(path);
+        if ( etag == null ) {
+            final Matcher matcher = FINGERPRINT.matcher(path);
+            etag = "";
+            while ( matcher.find() ) { // use the last (in the file name) match
+                if ( path.indexOf('/', matcher.end()) == -1 ) {
+                    etag = '"' + matcher.group(1) + '"';
+                }
+            }
+            if ( fingerprints.size() >= MAX_FINGERPRINTS ) fingerprints.clear();
+            fingerprints.put(path, etag);
+        }
+        return etag.length() == 0 ? null : etag;
+    }
+
+    /**
+     * Serve a (whole) resource from the asset cache.
+     * @return false if the request should be handled by the default path
+     */
+    private boolean serveAsset(final AssetCache assetCache,
+        final HttpServletRequest request, final HttpServletResponse response,
+        final boolean content) throws IOException {
+        // (range / included / error) requests are left to the default path
+        if ( ! isPlainRequest(request, response) ) return false;
+        if ( request.getHeader("Range") != null ) return false;
+
+        final String path = getRelativePath(request);
+        if ( path.endsWith("/") || path.endsWith("\\") ) return false;
+
+        final CacheEntry cacheEntry = resources.lookupCache(path);
+        if ( ! cacheEntry.exists || cacheEntry.context != null ) return false;
+        final ResourceAttributes attributes = cacheEntry.attributes;
+        final long length = attributes.getContentLength();
+        if ( ! assetCache.isCacheable(length) ) return false;
+        // let large files go (zero-copy) through sendfile :
+        if ( isSendfileCandidate(request, cacheEntry, length) ) return false;
+
+        if ( ! checkIfHeaders(request, response, attributes) ) return true;
+
+        AssetCache.Asset asset = assetCache.get(path, attributes.getLastModified(), length);
+        if ( asset == null ) {
+            asset = loadAsset(path, cacheEntry);
+            if ( asset == null ) return false;
+            assetCache.put(asset);
+        }
+
+        ServletOutputStream out = null;
+        if ( content ) {
+            try {
+                out = response.getOutputStream();
+            }
+            catch (IllegalStateException e) {
+                return false; // writer already obtained
+            }
+        }
+
+        if ( useAcceptRanges ) response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("Last-Modified", attributes.getLastModifiedHttp());
+        if ( asset.contentType != null ) response.setContentType(asset.contentType);
+
+        byte[] bytes = asset.content; String etag = attributes.getETag();
+        if ( asset.gzipContent != null ) {
+            response.addHeader("Vary", "Accept-Encoding");
+            if ( AssetCache.acceptsGzip( request.getHeader("Accept-Encoding") ) ) {
+                response.setHeader("Content-Encoding", "gzip");
+                bytes = asset.gzipContent; etag = gzipETag(etag);
+            }
+        }
+        response.setHeader("ETag", etag);
+        response.setContentLength(bytes.length);
+        if ( out != null ) out.write(bytes);
+        return true;
+    }
+
+    public int getSendfileSize() {
+        return sendfileSize;
+    }
+
+    /**
+     * @return true if the connector supports sendfile and the resource is a
+     * file larger than the configured sendfile size
+     */
+    protected boolean isSendfileCandidate(final HttpServletRequest request,
+        final CacheEntry cacheEntry, final long length) {
+        return sendfileSize > 0 && length > sendfileSize &&
+            cacheEntry.attributes.getCanonicalPath() != null &&
+            Boolean.TRUE.equals( request.getAttribute(Globals.SENDFILE_SUPPORTED_ATTR) );
+    }
+
+    @Override
+    protected boolean checkSendfile(final HttpServletRequest request,
+        final HttpServletResponse response, final CacheEntry entry,
+        final long length, final Range range) {
+        // super only sendfile-s for a RequestFacade (not for wrapped requests),
+        // the sendfile attributes end up on the connector request regardless
+        return super.checkSendfile(unwrap(request), response, entry, length, range);
+    }
+
+    private static HttpServletRequest unwrap(HttpServletRequest request) {
+        while ( request instanceof HttpServletRequestWrapper ) {
+            final ServletRequest wrapped = ((HttpServletRequestWrapper) request).getRequest();
+            if ( ! ( wrapped instanceof HttpServletRequest ) ) break;
+            request = (HttpServletRequest) wrapped;
+        }
+        return request;
+    }
+
+    static final int RANGE_BUFFER_SIZE = 64 * 1024;
+
+    @Override
+    protected void copy(final CacheEntry cacheEntry, final ServletOutputStream out,
+        final Range range) throws IOException {
+        final byte[] content = cacheEntry.resource == null ? null : cacheEntry.resource.getContent();
+        if ( content != null ) { // in-memory (cached) resource
+            out.write(content, (int) range.start, (int) (range.end - range.start + 1));
+            return;
+        }
+        final String file = cacheEntry.attributes.getCanonicalPath();
+        if ( file == null ) { super.copy(cacheEntry, out, range); return; }
+
+        final FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            copyRange(channel, out, range, newRangeBuffer(range));
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    protected void copy(final CacheEntry cacheEntry, final ServletOutputStream out,
+        final Iterator<Range> ranges, final String contentType) throws IOException {
+        final String file = cacheEntry.attributes.getCanonicalPath();
+        if ( file == null ) { super.copy(cacheEntry, out, ranges, contentType); return; }
+
+        // NOTE: same multipart/byteranges format as super, but using a single
+        // channel (with positional reads) for all ranges :
+        final FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            final ByteBuffer buffer = ByteBuffer.allocate(RANGE_BUFFER_SIZE);
+            while ( ranges.hasNext() ) {
+                final Range range = ranges.next();
+                out.println();
+                out.println("--" + mimeSeparation);
+                if ( contentType != null ) out.println("Content-Type: " + contentType);
+                out.println("Content-Range: bytes " + range.start + "-" + range.end + "/" + range.length);
+                out.println();
+
+                copyRange(channel, out, range, buffer);
+            }
+            out.println();
+            out.print("--" + mimeSeparation + "--");
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    private static ByteBuffer newRangeBuffer(final Range range) {
+        final long length = range.end - range.start + 1;
+        return ByteBuffer.allocate( (int) Math.min(length, RANGE_BUFFER_SIZE) );
+    }
+
+    private static void copyRange(final FileChannel channel, final ServletOutputStream out,
+        final Range range, final ByteBuffer buffer) throws IOException {
+        final byte[] bytes = buffer.array();
+        long position = range.start;
+        final long end = range.end + 1;
+        while ( position < end ) {
+            buffer.clear();
+            final long remaining = end - position;
+            if ( remaining < buffer.capacity() ) buffer.limit( (int) remaining );
+            final int read = channel.read(buffer, position);
+            if ( read == -1 ) throw new EOFException("unexpected end of file at " + position);
+            out.write(bytes, 0, read);
+            position += read;
+        }
+    }
+
+    private AssetCache.Asset loadAsset(final String path, final CacheEntry cacheEntry)
+        throws IOException {
+        final ResourceAttributes attributes = cacheEntry.attributes;
+        final byte[] content = readContent(cacheEntry.resource, attributes.getContentLength());
+        if ( content == null ) return null;
+
+        String contentType = attributes.getMimeType();
+        if ( contentType == null ) {
+            contentType = getServletContext().getMimeType(cacheEntry.name);
+            attributes.setMimeType(contentType);
+        }
+
+        byte[] gzipContent = null;
+        if ( AssetCache.isCompressible(contentType) ) {
+            // prefer a pre-compressed (up-to-date) sibling e.g. application.js.gz
+            final CacheEntry gzipEntry = resources.lookupCache(path + ".gz");
+            if ( gzipEntry.exists && gzipEntry.context == null &&
+                 gzipEntry.attributes.getLastModified() >= attributes.getLastModified() ) {
+                final long gzipLength = gzipEntry.attributes.getContentLength();
+                if ( gzipLength < content.length ) {
+                    gzipContent = readContent(gzipEntry.resource, gzipLength);
+                }
+            }
+            else {
+                gzipContent = AssetCache.gzip(content);
+            }
+        }
+        return new AssetCache.Asset(path, content, gzipContent, attributes.getLastModified(), contentType);
+    }
+
+    private static byte[] readContent(final Resource resource, final long length)
+        throws IOException {
+        if ( resource == null || length < 0 || length > Integer.MAX_VALUE ) return null;
+        final byte[] content = resource.getContent();
+        if ( content != null ) return content.length == length ? content : null;
+        final byte[] bytes = new byte[ (int) length ];
+        final InputStream input = resource.streamContent();
+        try {
+            int off = 0;
+            while ( off < bytes.length ) {
+                final int read = input.read(bytes, off, bytes.length - off);
+                if ( read == -1 ) return null; // changed while reading
+                off += read;
+            }
+        }
+        finally {
+            input.close();
         }
-        setPublicRoot( root );
+        return bytes;
     }
     
     @Override
@@ -80,7 +754,7 @@ public class DefaultServlet extends org.apache.catalina.servlets.DefaultServlet
         // NOTE: all overriding due so we can "/public" prefix here :
         String result = super.getRelativePath(request);
         final String prefix = getPublicRoot();
-        if ( prefix != null ) result = prefix + result;
+        if ( prefix != null ) result = prefix.concat(result);
         return result;
     }
 
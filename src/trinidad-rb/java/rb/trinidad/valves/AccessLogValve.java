@@ -0,0 +1,587 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package rb.trinidad.valves;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Globals;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.CharChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+
+import rb.trinidad.logging.FileHandler;
+
+/**
+ * An access log valve that does (almost) no work on the request thread.
+ *
+ * <p>
+ * Each request is captured as a fixed size entry (time-stamp, duration in
+ * nanoseconds, status, bytes written, context, method and path) into a
+ * pre-allocated (direct) ring buffer. Entries are rendered (as text or JSON)
+ * by a single background thread and written through a {@link FileHandler}.
+ * When the ring is full entries get dropped (and counted) instead of blocking
+ * the request thread.
+ * </p>
+ *
+ * <p>
+ * Text lines look like (fields separated by a single space) :
+ * <code>2013-02-05 13:45:22.042 context GET /path 200 1234 523000</code>
+ * with the last 3 fields being the status, (body) bytes and duration (ns).
+ * </p>
+ *
+ * @author kares
+ */
+public class AccessLogValve extends ValveBase {
+
+    public static final String TEXT_FORMAT = "text";
+    public static final String JSON_FORMAT = "json";
+
+    static final int DEFAULT_CAPACITY = 8192;
+    static final int DEFAULT_ENTRY_SIZE = 256;
+    static final int MIN_ENTRY_SIZE = 64;
+
+    // entry layout (offsets within an entry) :
+    private static final int TIME = 0; // long (millis)
+    private static final int DURATION = 8; // long (nanos)
+    private static final int BYTES = 16; // long
+    private static final int STATUS = 24; // int (INVALID if capture failed)
+    private static final int CONTEXT = 28; // int (-1 if none)
+    private static final int METHOD_LENGTH = 32; // byte
+    private static final int METHOD = 33; // max 15 bytes
+    private static final int METHOD_MAX = 15;
+    private static final int PATH_LENGTH = 48; // int (copied length)
+    private static final int PATH = 52;
+
+    private static final int INVALID = -1;
+
+    private static final int BATCH_SIZE = 256;
+
+    private String directory = "log";
+    private String prefix = "access"; // access.log
+    private String suffix = ".log";
+    private boolean rotatable = true;
+    private int bufferSize = 8192;
+    private String format = TEXT_FORMAT;
+    private int capacity = DEFAULT_CAPACITY;
+    private int entrySize = DEFAULT_ENTRY_SIZE;
+    private long pollInterval = 50; // ms
+
+    private ByteBuffer ring;
+    private AtomicLongArray published; // sequence + 1 once an entry is written
+    private int mask;
+
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    // context name -> id, resolved by the writer (names are only ever added)
+    private final ConcurrentHashMap<String, Integer> contextIds =
+        new ConcurrentHashMap<String, Integer>();
+    private volatile String[] contextNames = new String[0];
+
+    private FileHandler fileHandler;
+    private volatile Thread writerThread;
+    private volatile boolean running;
+
+    public AccessLogValve() {
+        super(true);
+    }
+
+    @Override
+    public void invoke(final Request request, final Response response)
+        throws IOException, ServletException {
+        final long start = System.nanoTime();
+        try {
+            getNext().invoke(request, response);
+        }
+        finally {
+            if ( request.isAsync() ) {
+                // log on completion (only async requests pay for a listener)
+                request.getAsyncContext().addListener(new AsyncLog(start, request, response));
+            }
+            else {
+                log(request, response, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private final class AsyncLog implements AsyncListener {
+
+        private final long start;
+        private final Request request;
+        private final Response response;
+
+        AsyncLog(final long start, final Request request, final Response response) {
+            this.start = start;
+            this.request = request;
+            this.response = response;
+        }
+
+        public void onComplete(AsyncEvent event) {
+            log(request, response, System.nanoTime() - start);
+        }
+
+        public void onTimeout(AsyncEvent event) { /* onComplete follows */ }
+
+        public void onError(AsyncEvent event) { /* onComplete follows */ }
+
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this); // re-register
+        }
+
+    }
+
+    /**
+     * Capture a request entry into the ring buffer (no allocation).
+     * @param request
+     * @param response
+     * @param duration (in nanoseconds)
+     */
+    protected void log(final Request request, final Response response, final long duration) {
+        if ( ! running ) return;
+
+        final long seq = claim();
+        if ( seq < 0 ) {
+            droppedCount.incrementAndGet(); return;
+        }
+
+        final ByteBuffer ring = this.ring;
+        final int base = (int) (seq & mask) * entrySize;
+        boolean captured = false;
+        try {
+            final org.apache.coyote.Request coyoteRequest = request.getCoyoteRequest();
+            ring.putLong(base + TIME, coyoteRequest.getStartTime());
+            ring.putLong(base + DURATION, duration);
+            ring.putLong(base + BYTES, response.getContentWritten());
+            ring.putInt(base + STATUS, response.getStatus());
+            ring.putInt(base + CONTEXT, contextId(request.getContext()));
+            final int methodLength = copy(coyoteRequest.method(), ring, base + METHOD, METHOD_MAX);
+            ring.put(base + METHOD_LENGTH, (byte) methodLength);
+            final int pathLength = copy(coyoteRequest.requestURI(), ring, base + PATH, entrySize - PATH);
+            ring.putInt(base + PATH_LENGTH, pathLength);
+            captured = true;
+        }
+        finally { // always publish - the writer would otherwise stall on this slot
+            if ( ! captured ) {
+                ring.putInt(base + STATUS, INVALID);
+                droppedCount.incrementAndGet();
+            }
+            published.lazySet((int) (seq & mask), seq + 1);
+        }
+    }
+
+    private long claim() {
+        for (;;) {
+            final long seq = claimed.get();
+            if ( seq - consumed >= capacity ) return -1; // full
+            if ( claimed.compareAndSet(seq, seq + 1) ) return seq;
+        }
+    }
+
+    private int contextId(final Context context) {
+        if ( context == null ) return -1;
+        final String name = context.getName();
+        final Integer id = contextIds.get(name);
+        return id != null ? id : newContextId(name);
+    }
+
+    private synchronized int newContextId(final String name) {
+        Integer id = contextIds.get(name);
+        if ( id == null ) {
+            final String[] names = contextNames;
+            final String[] newNames = new String[names.length + 1];
+            System.arraycopy(names, 0, newNames, 0, names.length);
+            newNames[names.length] = name;
+            contextNames = newNames;
+            contextIds.put(name, id = names.length);
+        }
+        return id;
+    }
+
+    private static int copy(final MessageBytes bytes, final ByteBuffer ring,
+        final int offset, final int max) {
+        switch ( bytes.getType() ) {
+            case MessageBytes.T_BYTES :
+                final ByteChunk byteChunk = bytes.getByteChunk();
+                final byte[] buf = byteChunk.getBuffer();
+                final int start = byteChunk.getStart();
+                final int len = Math.min(byteChunk.getLength(), max);
+                for ( int i = 0; i < len; i++ ) ring.put(offset + i, buf[start + i]);
+                return len;
+            case MessageBytes.T_CHARS :
+                final CharChunk charChunk = bytes.getCharChunk();
+                final char[] chars = charChunk.getBuffer();
+                final int charStart = charChunk.getStart();
+                final int charLen = Math.min(charChunk.getLength(), max);
+                for ( int i = 0; i < charLen; i++ ) {
+                    ring.put(offset + i, (byte) chars[charStart + i]);
+                }
+                return charLen;
+            case MessageBytes.T_STR :
+                final String str = bytes.getString();
+                final int strLen = Math.min(str.length(), max);
+                for ( int i = 0; i < strLen; i++ ) {
+                    ring.put(offset + i, (byte) str.charAt(i));
+                }
+                return strLen;
+            default : return 0;
+        }
+    }
+
+    @Override
+    protected synchronized void startInternal() throws LifecycleException {
+        final int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        capacity = size; mask = size - 1;
+        entrySize = Math.max(entrySize, MIN_ENTRY_SIZE);
+        ring = ByteBuffer.allocateDirect(size * entrySize);
+        published = new AtomicLongArray(size);
+        claimed.set(0); consumed = 0;
+
+        fileHandler = new FileHandler(getLogDirectory(), prefix, suffix);
+        fileHandler.setRotatable(rotatable);
+        fileHandler.setBufferSize(bufferSize);
+        fileHandler.setLevel(Level.ALL);
+        fileHandler.setFormatter(new Formatter() {
+            @Override
+            public String format(LogRecord record) { return record.getMessage(); }
+        });
+        try {
+            fileHandler.setEncoding("UTF-8");
+        }
+        catch (IOException e) { throw new LifecycleException(e); }
+
+        running = true;
+        final Thread writer = new Thread(new Writer(), "Trinidad-AccessLog[" + getContainerName() + "]");
+        writer.setDaemon(true);
+        writerThread = writer;
+        writer.start();
+
+        super.startInternal();
+    }
+
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+        super.stopInternal();
+
+        running = false;
+        final Thread writer = writerThread;
+        if ( writer != null ) {
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+        }
+        fileHandler.close();
+        fileHandler = null;
+    }
+
+    private String getContainerName() {
+        return container == null ? "" : container.getName();
+    }
+
+    private String getLogDirectory() {
+        File dir = new File(directory);
+        if ( ! dir.isAbsolute() ) {
+            final String base = System.getProperty(Globals.CATALINA_BASE_PROP);
+            if ( base != null ) dir = new File(base, directory);
+        }
+        return dir.getAbsolutePath();
+    }
+
+    private final class Writer implements Runnable {
+
+        private final StringBuilder buffer = new StringBuilder(BATCH_SIZE * 128);
+        private final boolean json = JSON_FORMAT.equalsIgnoreCase(format);
+        private final SimpleDateFormat dateFormat;
+        private long lastSecond = Long.MIN_VALUE;
+        private String lastDate;
+        private long droppedReported;
+
+        Writer() {
+            if ( json ) {
+                dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+                dateFormat.setTimeZone( TimeZone.getTimeZone("UTC") );
+            }
+            else {
+                dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            }
+        }
+
+        public void run() {
+            boolean flushed = true;
+            for (;;) {
+                final boolean stopping = ! running;
+                final int count = drain();
+                if ( count > 0 ) {
+                    flushed = false; continue;
+                }
+                if ( ! flushed ) {
+                    fileHandler.flush(); flushed = true;
+                }
+                reportDropped();
+                if ( stopping ) break; // drained all published entries
+                LockSupport.parkNanos(pollInterval * 1000000L);
+            }
+        }
+
+        private int drain() {
+            final StringBuilder buffer = this.buffer;
+            buffer.setLength(0);
+            long seq = consumed; int count = 0;
+            while ( count < BATCH_SIZE ) {
+                final int index = (int) (seq & mask);
+                if ( published.get(index) != seq + 1 ) break;
+                final int base = index * entrySize;
+                if ( ring.getInt(base + STATUS) != INVALID ) render(base, buffer);
+                consumed = ++seq; count++;
+            }
+            if ( buffer.length() > 0 ) {
+                final LogRecord record = new LogRecord(Level.INFO, buffer.toString());
+                fileHandler.publish(record);
+            }
+            return count;
+        }
+
+        private void render(final int base, final StringBuilder line) {
+            final ByteBuffer ring = AccessLogValve.this.ring;
+            final long time = ring.getLong(base + TIME);
+            final int contextId = ring.getInt(base + CONTEXT);
+            final String[] names = contextNames;
+            final String context = contextId >= 0 && contextId < names.length ? names[contextId] : null;
+            if ( json ) {
+                line.append("{\"timestamp\":\"");
+                appendTime(line, time);
+                line.append("Z\",\"context\":");
+                if ( context == null ) line.append("null");
+                else appendJSON(line, context);
+                line.append(",\"method\":");
+                appendBytes(line, ring, base + METHOD, ring.get(base + METHOD_LENGTH), true);
+                line.append(",\"path\":");
+                appendBytes(line, ring, base + PATH, ring.getInt(base + PATH_LENGTH), true);
+                line.append(",\"status\":").append( ring.getInt(base + STATUS) );
+                line.append(",\"bytes\":").append( ring.getLong(base + BYTES) );
+                line.append(",\"duration\":").append( ring.getLong(base + DURATION) );
+                line.append('}');
+            }
+            else {
+                appendTime(line, time);
+                line.append(' ').append( context == null || context.length() == 0 ? "-" : context );
+                line.append(' ');
+                appendBytes(line, ring, base + METHOD, ring.get(base + METHOD_LENGTH), false);
+                line.append(' ');
+                appendBytes(line, ring, base + PATH, ring.getInt(base + PATH_LENGTH), false);
+                line.append(' ').append( ring.getInt(base + STATUS) );
+                line.append(' ').append( ring.getLong(base + BYTES) );
+                line.append(' ').append( ring.getLong(base + DURATION) );
+            }
+            line.append(LINE_SEPARATOR);
+        }
+
+        private void appendTime(final StringBuilder line, final long millis) {
+            final long second = millis / 1000;
+            if ( second != lastSecond ) {
+                lastDate = dateFormat.format( new Date(second * 1000) );
+                lastSecond = second;
+            }
+            line.append(lastDate).append('.');
+            final int ms = (int) (millis % 1000);
+            if ( ms < 100 ) line.append('0');
+            if ( ms < 10 ) line.append('0');
+            line.append(ms);
+        }
+
+        private void appendBytes(final StringBuilder line, final ByteBuffer ring,
+            final int offset, final int length, final boolean json) {
+            if ( length <= 0 ) {
+                line.append( json ? "\"\"" : "-" ); return;
+            }
+            final int start = line.length();
+            for ( int i = 0; i < length; i++ ) { // ISO-8859-1 (raw request bytes)
+                line.append( (char) (ring.get(offset + i) & 0xFF) );
+            }
+            if ( json ) {
+                final String str = line.substring(start);
+                line.setLength(start);
+                appendJSON(line, str);
+            }
+        }
+
+        private void reportDropped() {
+            final long dropped = droppedCount.get();
+            if ( dropped != droppedReported ) {
+                containerLog().warn("access log ring full, dropped " +
+                    (dropped - droppedReported) + " entries (capacity: " + capacity + ")");
+                droppedReported = dropped;
+            }
+        }
+
+    }
+
+    private org.apache.juli.logging.Log containerLog() {
+        return container != null ? container.getLogger() :
+            org.apache.juli.logging.LogFactory.getLog(AccessLogValve.class);
+    }
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static void appendJSON(final StringBuilder json, final String str) {
+        json.append('"');
+        for ( int i = 0; i < str.length(); i++ ) {
+            final char c = str.charAt(i);
+            if ( c == '"' || c == '\\' ) json.append('\\').append(c);
+            else if ( c < 0x20 || c == 0x7F ) {
+                json.append("\\u00").append( HEX[(c >> 4) & 0xF] ).append( HEX[c & 0xF] );
+            }
+            else json.append(c);
+        }
+        json.append('"');
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param directory the log directory (relative to catalina.base)
+     */
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    public void setSuffix(String suffix) {
+        this.suffix = suffix;
+    }
+
+    public boolean isRotatable() {
+        return rotatable;
+    }
+
+    public void setRotatable(boolean rotatable) {
+        this.rotatable = rotatable;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * @param format "text" (default) or "json"
+     */
+    public void setFormat(String format) {
+        if ( ! TEXT_FORMAT.equalsIgnoreCase(format) && ! JSON_FORMAT.equalsIgnoreCase(format) ) {
+            throw new IllegalArgumentException("unsupported format: " + format);
+        }
+        this.format = format;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param capacity number of ring entries (rounded up to a power of 2)
+     */
+    public void setCapacity(int capacity) {
+        if ( capacity <= 0 ) throw new IllegalArgumentException("capacity: " + capacity);
+        this.capacity = capacity;
+    }
+
+    public int getEntrySize() {
+        return entrySize;
+    }
+
+    /**
+     * @param entrySize size of a ring entry in bytes (paths longer than
+     * the space left in an entry are truncated)
+     */
+    public void setEntrySize(int entrySize) {
+        this.entrySize = entrySize;
+    }
+
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    /**
+     * @param pollInterval how long (ms) the writer sleeps when the ring is empty
+     */
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = Math.max(pollInterval, 1);
+    }
+
+    /**
+     * @return number of entries dropped due the ring being full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+}
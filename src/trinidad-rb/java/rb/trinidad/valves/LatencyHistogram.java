@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package rb.trinidad.valves;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free (log-linear) histogram of (nanosecond) latencies.
+ *
+ * Values are counted in buckets of 32 linear sub-buckets per power of 2
+ * (thus with a relative error under ~3%), up to ~18 minutes. Recording is
+ * striped (by thread) over several counter arrays to avoid contention, a
+ * snapshot sums up the stripes.
+ *
+ * @author kares
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS; // 32
+    private static final int MAX_EXPONENT = 40; // 2^40 ns ~ 18 minutes
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+    // each stripe holds the bucket counts followed by the (nanos) sum
+    private static final int SUM = BUCKETS;
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+
+    LatencyHistogram() {
+        this( Runtime.getRuntime().availableProcessors() );
+    }
+
+    LatencyHistogram(final int concurrency) {
+        int count = Integer.highestOneBit(Math.max(concurrency, 1) * 2 - 1);
+        count = Math.min(count, 16);
+        stripes = new AtomicLongArray[count];
+        for ( int i = 0; i < count; i++ ) stripes[i] = new AtomicLongArray(BUCKETS + 1);
+        stripeMask = count - 1;
+    }
+
+    void record(long nanos) {
+        if ( nanos < 0 ) nanos = 0;
+        final AtomicLongArray stripe = stripes[ (int) Thread.currentThread().getId() & stripeMask ];
+        stripe.incrementAndGet( index(nanos) );
+        stripe.addAndGet(SUM, nanos);
+    }
+
+    static int index(final long value) {
+        if ( value < SUB_COUNT ) return (int) value;
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if ( exponent > MAX_EXPONENT ) return BUCKETS - 1;
+        final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * @return the (nanos) value in the middle of the given bucket
+     */
+    static long value(final int index) {
+        if ( index < SUB_COUNT ) return index;
+        final int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        final int shift = exponent - SUB_BITS;
+        final long low = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+        return low + ( (1L << shift) >> 1 );
+    }
+
+    /**
+     * @return the summed up bucket counts followed by the sum of values
+     */
+    long[] snapshot() {
+        final long[] counts = new long[BUCKETS + 1];
+        for ( final AtomicLongArray stripe : stripes ) {
+            for ( int i = 0; i <= BUCKETS; i++ ) counts[i] += stripe.get(i);
+        }
+        return counts;
+    }
+
+    static long count(final long[] snapshot) {
+        long count = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) count += snapshot[i];
+        return count;
+    }
+
+    static long sum(final long[] snapshot) {
+        return snapshot[SUM];
+    }
+
+    /**
+     * @param snapshot
+     * @param percentile (e.g. 99.9)
+     * @return the (nanos) value at the given percentile, 0 if none recorded
+     */
+    static long percentile(final long[] snapshot, final double percentile) {
+        final long count = count(snapshot);
+        if ( count == 0 ) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            seen += snapshot[i];
+            if ( seen >= rank ) return value(i);
+        }
+        return value(BUCKETS - 1);
+    }
+
+    static long max(final long[] snapshot) {
+        for ( int i = BUCKETS - 1; i >= 0; i-- ) {
+            if ( snapshot[i] > 0 ) return value(i);
+        }
+        return 0;
+    }
+
+    /**
+     * @return the difference of the given snapshots (current - previous)
+     */
+    static long[] minus(final long[] current, final long[] previous) {
+        final long[] diff = new long[current.length];
+        for ( int i = 0; i < current.length; i++ ) diff[i] = current[i] - previous[i];
+        return diff;
+    }
+
+}
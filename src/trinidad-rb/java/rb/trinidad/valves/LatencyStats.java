@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package rb.trinidad.valves;
+
+/**
+ * Request latencies (of a context or a servlet) recorded into a striped
+ * {@link LatencyHistogram}. Statistics are reported for the interval since
+ * the last {@link #reset()} (counts are never cleared thus concurrent
+ * recording is not affected), in milliseconds.
+ *
+ * @author kares
+ */
+public class LatencyStats implements LatencyStatsMBean {
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final String name;
+    private final LatencyHistogram histogram;
+
+    private volatile long[] baseline;
+    private volatile long intervalStart;
+
+    public LatencyStats(String name) {
+        this.name = name;
+        this.histogram = new LatencyHistogram();
+        this.baseline = new long[LatencyHistogram.BUCKETS + 1];
+        this.intervalStart = System.currentTimeMillis();
+    }
+
+    /**
+     * @param nanos the (request) latency
+     */
+    public void record(long nanos) {
+        histogram.record(nanos);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return LatencyHistogram.count( histogram.snapshot() );
+    }
+
+    public long getIntervalCount() {
+        return LatencyHistogram.count( interval() );
+    }
+
+    public long getIntervalStart() {
+        return intervalStart;
+    }
+
+    public double getMean() {
+        final long[] interval = interval();
+        final long count = LatencyHistogram.count(interval);
+        if ( count == 0 ) return 0;
+        return LatencyHistogram.sum(interval) / NANOS_PER_MILLI / count;
+    }
+
+    public double getMax() {
+        return LatencyHistogram.max( interval() ) / NANOS_PER_MILLI;
+    }
+
+    public double getP50() {
+        return getPercentile(50);
+    }
+
+    public double getP90() {
+        return getPercentile(90);
+    }
+
+    public double getP99() {
+        return getPercentile(99);
+    }
+
+    public double getP999() {
+        return getPercentile(99.9);
+    }
+
+    /**
+     * @param percentile e.g. 99.9
+     * @return latency (ms) at the given percentile in the current interval
+     */
+    public double getPercentile(double percentile) {
+        return LatencyHistogram.percentile( interval(), percentile ) / NANOS_PER_MILLI;
+    }
+
+    public synchronized void reset() {
+        baseline = histogram.snapshot();
+        intervalStart = System.currentTimeMillis();
+    }
+
+    private long[] interval() {
+        return LatencyHistogram.minus( histogram.snapshot(), baseline );
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + name + "]";
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2013 Team Trinidad and contributors http://github.com/trinidad
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package rb.trinidad.valves;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.tomcat.util.modeler.Registry;
+
+/**
+ * Records request latencies of a context and of each of its servlets (e.g.
+ * the Rack servlet vs the default one) into {@link LatencyStats} histograms,
+ * registered as JMX beans e.g. as
+ * <code>Tomcat:type=Latency,host=localhost,context=/,servlet=RackServlet</code>
+ *
+ * @author kares
+ */
+public class LatencyValve extends ValveBase {
+
+    private volatile LatencyStats contextStats;
+    private final Map<String, LatencyStats> servletStats =
+        new ConcurrentHashMap<String, LatencyStats>();
+
+    public LatencyValve() {
+        super(true);
+    }
+
+    @Override
+    public void invoke(final Request request, final Response response)
+        throws IOException, ServletException {
+        final long start = System.nanoTime();
+        try {
+            getNext().invoke(request, response);
+        }
+        finally {
+            if ( request.isAsync() ) {
+                request.getAsyncContext().addListener(new AsyncRecord(start, request));
+            }
+            else {
+                record(request, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private final class AsyncRecord implements AsyncListener {
+
+        private final long start;
+        private final Request request;
+
+        AsyncRecord(final long start, final Request request) {
+            this.start = start;
+            this.request = request;
+        }
+
+        public void onComplete(AsyncEvent event) {
+            record(request, System.nanoTime() - start);
+        }
+
+        public void onTimeout(AsyncEvent event) { /* onComplete follows */ }
+
+        public void onError(AsyncEvent event) { /* onComplete follows */ }
+
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this); // re-register
+        }
+
+    }
+
+    protected void record(final Request request, final long nanos) {
+        final LatencyStats stats = contextStats;
+        if ( stats == null ) return; // not started
+        stats.record(nanos);
+        final Wrapper wrapper = request.getWrapper();
+        if ( wrapper != null ) getServletStats( wrapper.getName(), true ).record(nanos);
+    }
+
+    /**
+     * @return latencies of all (context) requests
+     */
+    public LatencyStats getContextStats() {
+        return contextStats;
+    }
+
+    /**
+     * @param servletName
+     * @return latencies of requests served by the given servlet (or null)
+     */
+    public LatencyStats getServletStats(final String servletName) {
+        return getServletStats(servletName, false);
+    }
+
+    private LatencyStats getServletStats(final String servletName, final boolean create) {
+        LatencyStats stats = servletStats.get(servletName);
+        if ( stats == null && create ) {
+            synchronized (servletStats) {
+                stats = servletStats.get(servletName);
+                if ( stats == null ) {
+                    stats = new LatencyStats(servletName);
+                    servletStats.put(servletName, stats);
+                    registerStats(stats, servletName);
+                }
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    protected synchronized void startInternal() throws LifecycleException {
+        final LatencyStats stats = new LatencyStats( getContextPath() );
+        registerStats(stats, null);
+        contextStats = stats;
+
+        super.startInternal();
+    }
+
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+        super.stopInternal();
+
+        contextStats = null;
+        unregisterStats(null);
+        synchronized (servletStats) {
+            for ( final String servletName : servletStats.keySet() ) unregisterStats(servletName);
+            servletStats.clear();
+        }
+    }
+
+    private void registerStats(final LatencyStats stats, final String servletName) {
+        try {
+            final MBeanServer server = Registry.getRegistry(null, null).getMBeanServer();
+            final ObjectName name = getStatsName(servletName);
+            if ( server.isRegistered(name) ) server.unregisterMBean(name);
+            server.registerMBean(stats, name);
+        }
+        catch (Exception e) {
+            containerLog.warn("failed registering latency stats: " + stats, e);
+        }
+    }
+
+    private void unregisterStats(final String servletName) {
+        try {
+            final MBeanServer server = Registry.getRegistry(null, null).getMBeanServer();
+            final ObjectName name = getStatsName(servletName);
+            if ( server.isRegistered(name) ) server.unregisterMBean(name);
+        }
+        catch (Exception e) {
+            containerLog.debug("failed unregistering latency stats: " + servletName, e);
+        }
+    }
+
+    ObjectName getStatsName(final String servletName) throws Exception {
+        final StringBuilder name = new StringBuilder();
+        final String domain = getDomain();
+        name.append( domain == null ? "Catalina" : domain ).append(":type=Latency");
+        final Container host = container == null ? null : container.getParent();
+        if ( host != null ) name.append(",host=").append( quote(host.getName()) );
+        name.append(",context=").append( quote(getContextPath()) );
+        if ( servletName != null ) name.append(",servlet=").append( quote(servletName) );
+        return new ObjectName( name.toString() );
+    }
+
+    private String getContextPath() {
+        if ( container instanceof Context ) {
+            final String path = ((Context) container).getPath();
+            return path == null || path.length() == 0 ? "/" : path;
+        }
+        return container == null ? "" : container.getName();
+    }
+
+    private static String quote(final String value) {
+        for ( int i = 0; i < value.length(); i++ ) {
+            switch ( value.charAt(i) ) {
+                case ',' : case '=' : case ':' : case '"' :
+                case '*' : case '?' : case '\n' :
+                    return ObjectName.quote(value);
+            }
+        }
+        return value;
+    }
+
+}